@@ -31,7 +31,7 @@ import com.ensolabs.billing.dungeons.redux.R;
 import com.ensolabs.billing.example.auxiliary.CatalogAdapter;
 import com.ensolabs.billing.example.auxiliary.CatalogEntry;
 import com.ensolabs.billing.example.auxiliary.CatalogEntry.Managed;
-import com.ensolabs.robobilling.event.PurchaseStateChangeEvent;
+import com.ensolabs.robobilling.event.PurchasesUpdatedEvent;
 import com.ensolabs.robobilling.helper.RoboBillingFragmentActivity;
 import net.robotmedia.billing.model.Transaction;
 import net.robotmedia.billing.model.Transaction.PurchaseState;
@@ -81,8 +81,8 @@ public class Dungeons extends RoboBillingFragmentActivity {
     }
 
     @Override
-    public void onPurchaseStateChanged(PurchaseStateChangeEvent event) {
-        Log.i(TAG, "onPurchaseStateChanged() itemId: " + event.getProductId());
+    public void onPurchasesUpdated(PurchasesUpdatedEvent event) {
+        Log.i(TAG, "onPurchasesUpdated() itemIds: " + event.getProductIds());
         updateOwnedItems();
     }
 
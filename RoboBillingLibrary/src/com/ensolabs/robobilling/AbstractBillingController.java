@@ -19,18 +19,26 @@ import android.content.Context;
 import android.util.Log;
 import com.ensolabs.robobilling.logging.Logger;
 import net.robotmedia.billing.model.Transaction;
+import net.robotmedia.billing.model.TransactionIterator;
 import net.robotmedia.billing.model.TransactionManager;
 import net.robotmedia.billing.utils.IConfiguration;
 import net.robotmedia.billing.utils.Security;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class AbstractBillingController implements RoboBillingController {
 
     private static final String LOG_TAG = "AbstractBillingController";
     protected IConfiguration configuration = null;
     private Context context;
+    private final Object backfillLock = new Object();
+    private boolean backfillStarted;
+    private byte[] backfillSalt;
 
     protected AbstractBillingController(Context context) {
         this.context = context;
@@ -43,6 +51,63 @@ public abstract class AbstractBillingController implements RoboBillingController
      */
     public void setConfiguration(IConfiguration config) {
         configuration = config;
+        if (config != null) {
+            backfillIfSaltChanged(config.getObfuscationSalt());
+        }
+    }
+
+    /**
+     * Transactions stored by older versions have no product key yet. Their
+     * keys are computed in the background, once per salt: the salt may change
+     * (e.g. when it's derived from the user id), and transactions that can't be
+     * unobfuscated with one salt may be with the next.
+     *
+     * @param salt current salt.
+     */
+    private void backfillIfSaltChanged(final byte[] salt) {
+        synchronized (backfillLock) {
+            if (backfillStarted && Arrays.equals(salt, backfillSalt)) {
+                return;
+            }
+            backfillStarted = true;
+            backfillSalt = salt != null ? salt.clone() : null;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                backfillProductKeys(salt);
+                updateSnapshotLookupKey(salt);
+            }
+        }, "RoboBilling-backfill").start();
+    }
+
+    /**
+     * Derives the product key hashing key off the main thread and hands it to
+     * the entitlement snapshot, so the next cold start can look up items
+     * without deriving it.
+     */
+    private void updateSnapshotLookupKey(byte[] salt) {
+        if (!TransactionManager.isSnapshotEnabled()) {
+            return;
+        }
+        final byte[] lookupKey = salt != null ? Security.getLookupKey(context, salt) : null;
+        TransactionManager.setSnapshotLookupKey(context, salt, lookupKey);
+    }
+
+    private void backfillProductKeys(final byte[] salt) {
+        final int updated = TransactionManager.backfillProductKeys(context, new TransactionManager.ProductKeyResolver() {
+            @Override
+            public String getProductKey(String storedProductId) {
+                if (salt == null) {
+                    return storedProductId;
+                }
+                final String productId = Security.unobfuscate(context, salt, storedProductId);
+                return productId != null ? Security.hash(context, salt, productId) : null;
+            }
+        });
+        if (updated > 0) {
+            Logger.d(LOG_TAG, "Added product keys to " + updated + " transactions");
+        }
     }
 
     /**
@@ -57,6 +122,23 @@ public abstract class AbstractBillingController implements RoboBillingController
         return transactions;
     }
 
+    /**
+     * Iterates over all transactions stored locally in purchase time order,
+     * including cancellations and refunds. Transactions are read a page at a
+     * time and unobfuscated as they're reached, so the whole history is never
+     * held in memory.
+     *
+     * @return iterator over the transactions, to be closed unless iterated to the end.
+     */
+    public TransactionIterator iterateTransactions() {
+        return TransactionManager.iterateTransactions(context, new TransactionIterator.Decoder() {
+            @Override
+            public boolean decode(Transaction transaction) {
+                return unobfuscate(context, transaction);
+            }
+        });
+    }
+
     /**
      * Lists all transactions of the specified item, stored locally.
      *
@@ -64,9 +146,8 @@ public abstract class AbstractBillingController implements RoboBillingController
      * @return list of transactions.
      */
     public List<Transaction> getTransactions(String itemId) {
-        final byte[] salt = getSalt();
-        itemId = salt != null ? Security.obfuscate(context, salt, itemId) : itemId;
-        List<Transaction> transactions = TransactionManager.getTransactions(context, itemId);
+        List<Transaction> transactions = TransactionManager.getTransactions(context, getProductKey(context, itemId),
+                getStoredProductId(context, itemId));
         transactions = unobfuscate(context, transactions);
         return transactions;
     }
@@ -75,23 +156,115 @@ public abstract class AbstractBillingController implements RoboBillingController
      * Returns true if the specified item has been registered as purchased in
      * local memory, false otherwise. Also note that the item might have been
      * purchased in another installation, but not yet registered in this one.
+     * <p/>
+     * Answered from the entitlement snapshot when there is one.
      *
      * @param itemId item id.
      * @return true if the specified item is purchased, false otherwise.
      */
     public boolean isPurchased(String itemId) {
+        final int count = TransactionManager.countSnapshotPurchases(getSalt(), itemId);
+        if (count >= 0) {
+            return count > 0;
+        }
+        return TransactionManager.isPurchased(context, getProductKey(context, itemId),
+                getStoredProductIdIfNeeded(context, itemId));
+    }
+
+    /**
+     * Returns whether each of the specified items has been registered as
+     * purchased in local memory.
+     *
+     * @param itemIds item ids.
+     * @return true or false for each item id.
+     */
+    public Map<String, Boolean> isPurchased(Collection<String> itemIds) {
+        final Map<String, Integer> counts = countPurchases(itemIds);
+        final Map<String, Boolean> purchased = new HashMap<String, Boolean>(itemIds.size() * 2);
+        for (String itemId : itemIds) {
+            purchased.put(itemId, counts.containsKey(itemId));
+        }
+        return purchased;
+    }
+
+    /**
+     * Returns the number of purchases of each of the specified items, hashing
+     * each item id once and reading all the counts in one pass.
+     *
+     * @param itemIds item ids.
+     * @return number of purchases by item id, only for the items with at least
+     *         one purchase.
+     */
+    public Map<String, Integer> countPurchases(Collection<String> itemIds) {
+        final Map<String, Integer> snapshotCounts = countSnapshotPurchases(itemIds);
+        if (snapshotCounts != null) {
+            return snapshotCounts;
+        }
+        final Map<String, String> itemIdsByKey = new HashMap<String, String>(itemIds.size() * 2);
+        for (String itemId : itemIds) {
+            itemIdsByKey.put(getProductKey(context, itemId), itemId);
+        }
+        Map<String, String> storedProductIds = null;
+        if (TransactionManager.hasPurchasesWithoutKey(context)) {
+            storedProductIds = new HashMap<String, String>(itemIdsByKey.size() * 2);
+            for (Map.Entry<String, String> entry : itemIdsByKey.entrySet()) {
+                storedProductIds.put(entry.getKey(), getStoredProductId(context, entry.getValue()));
+            }
+        }
+        final Map<String, Integer> countsByKey = TransactionManager.countPurchases(context, itemIdsByKey.keySet(),
+                storedProductIds);
+        final Map<String, Integer> counts = new HashMap<String, Integer>(countsByKey.size() * 2);
+        for (Map.Entry<String, Integer> entry : countsByKey.entrySet()) {
+            counts.put(itemIdsByKey.get(entry.getKey()), entry.getValue());
+        }
+        return counts;
+    }
+
+    private Map<String, Integer> countSnapshotPurchases(Collection<String> itemIds) {
+        if (!TransactionManager.isSnapshotEnabled()) {
+            return null;
+        }
         final byte[] salt = getSalt();
-        itemId = salt != null ? Security.obfuscate(context, salt, itemId) : itemId;
-        return TransactionManager.isPurchased(context, itemId);
+        final Map<String, Integer> counts = new HashMap<String, Integer>(itemIds.size() * 2);
+        for (String itemId : itemIds) {
+            final int count = TransactionManager.countSnapshotPurchases(salt, itemId);
+            if (count < 0) {
+                return null;
+            }
+            if (count > 0) {
+                counts.put(itemId, count);
+            }
+        }
+        return counts;
     }
 
     protected void storeTransaction(Context context, Transaction t) {
         Log.v(LOG_TAG, "Storing transaction");
         final Transaction t2 = t.clone();
+        t2.productKey = getProductKey(context, t.productId);
         obfuscate(context, t2);
         TransactionManager.addTransaction(context, t2);
     }
 
+    /**
+     * Stores all the given transactions at once, which is much cheaper than
+     * storing them one by one when a response carries several orders.
+     *
+     * @param context
+     * @param transactions transactions to store.
+     */
+    protected void storeTransactions(Context context, List<Transaction> transactions) {
+        Log.v(LOG_TAG, "Storing " + transactions.size() + " transactions");
+        final List<Transaction> obfuscatedTransactions = new ArrayList<Transaction>(transactions.size());
+        for (Transaction t : transactions) {
+            final Transaction t2 = t.clone();
+            t2.productKey = getProductKey(context, t.productId);
+            obfuscate(context, t2);
+            obfuscatedTransactions.add(t2);
+        }
+        TransactionManager.addTransactions(context, obfuscatedTransactions);
+    }
+
     protected List<Transaction> unobfuscate(Context context, List<Transaction> obfuscatedTransactions) {
         List<Transaction> unobfuscatedTransactions = new ArrayList<Transaction>();
         for (Transaction p : obfuscatedTransactions) {
@@ -129,6 +302,41 @@ public abstract class AbstractBillingController implements RoboBillingController
         return Security.obfuscate(context, salt, sku);
     }
 
+    /**
+     * Returns the key stored transactions of the given item are looked up by:
+     * a keyed hash of the item id, or the item id itself when there is no salt
+     * and transactions are stored in the clear.
+     *
+     * @param context
+     * @param sku item id.
+     * @return product key.
+     */
+    protected String getProductKey(Context context, String sku) {
+        final byte[] salt = getSalt();
+        return salt != null ? Security.hash(context, salt, sku) : sku;
+    }
+
+    /**
+     * Returns the product id transactions of the given item were stored with,
+     * which is how transactions stored before product keys are looked up.
+     *
+     * @param context
+     * @param sku item id.
+     * @return stored product id.
+     */
+    protected String getStoredProductId(Context context, String sku) {
+        final byte[] salt = getSalt();
+        return salt != null ? Security.obfuscate(context, salt, sku) : sku;
+    }
+
+    /**
+     * Same as {@link #getStoredProductId(Context, String)}, or null when no
+     * purchase lacks its product key, to spare the obfuscation.
+     */
+    protected String getStoredProductIdIfNeeded(Context context, String sku) {
+        return TransactionManager.hasPurchasesWithoutKey(context) ? getStoredProductId(context, sku) : null;
+    }
+
     /**
      * Unobfuscate the specified purchase.
      *
@@ -159,6 +367,9 @@ public abstract class AbstractBillingController implements RoboBillingController
         if (configuration == null || ((salt = configuration.getObfuscationSalt()) == null)) {
             Logger.w(LOG_TAG, "Can't (un)obfuscate purchases without salt");
         }
+        if (configuration != null) {
+            backfillIfSaltChanged(salt);
+        }
         return salt;
     }
 }
@@ -32,6 +32,7 @@ import com.amazon.inapp.purchasing.SubscriptionPeriod;
 import com.ensolabs.robobilling.event.BillingCheckedEvent;
 import com.ensolabs.robobilling.event.ItemInfoEvent;
 import com.ensolabs.robobilling.event.PurchaseStateChangeEvent;
+import com.ensolabs.robobilling.event.PurchasesUpdatedEvent;
 import com.ensolabs.robobilling.event.SubscriptionCheckedEvent;
 import com.ensolabs.robobilling.logging.Logger;
 import com.google.inject.Inject;
@@ -327,7 +328,7 @@ public class AmazonBillingController extends AbstractBillingController {
         protected void onPostExecute(final Boolean success) {
             super.onPostExecute(success);
             if (success) {
-                eventBus.post(new PurchaseStateChangeEvent());
+                postPurchasesUpdated();
             }
         }
     }
@@ -351,14 +352,16 @@ public class AmazonBillingController extends AbstractBillingController {
              * revoked skus set.
              */
             Set<String> revokedSkus = purchaseUpdatesResponse.getRevokedSkus();
-            String[] obfuscatedSkus = new String[revokedSkus.size()];
+            String[] revokedKeys = new String[revokedSkus.size()];
+            String[] revokedProductIds = new String[revokedSkus.size()];
             int i = 0;
             for (final String sku : revokedSkus) {
                 Logger.v(TAG, "Revoked Sku:" + sku);
-                obfuscatedSkus[i] = obfuscate(context, sku);
+                revokedKeys[i] = getProductKey(context, sku);
+                revokedProductIds[i] = getStoredProductId(context, sku);
                 i++;
             }
-            TransactionManager.removeTransactions(context, obfuscatedSkus);
+            TransactionManager.removeTransactions(context, revokedKeys, revokedProductIds);
 
             switch (purchaseUpdatesResponse.getPurchaseUpdatesRequestStatus()) {
                 case SUCCESSFUL:
@@ -426,8 +429,8 @@ public class AmazonBillingController extends AbstractBillingController {
                             for (Map.Entry<SubscriptionPeriod, String> subscriptionPeriodEntry : currentSubscriptionPeriods.entrySet()) {
                                 if (subscriptionPeriodEntry.getKey().getEndDate() != null) {
                                     final String sku = subscriptionPeriodEntry.getValue();
-                                    String obfuscatedSku = obfuscate(context, sku);
-                                    TransactionManager.removeTransactions(context, new String[]{obfuscatedSku});
+                                    TransactionManager.removeTransactions(context, new String[]{getProductKey(context, sku)},
+                                            new String[]{getStoredProductId(context, sku)});
                                     break;
                                 }
                             }
@@ -447,8 +450,15 @@ public class AmazonBillingController extends AbstractBillingController {
         protected void onPostExecute(final Boolean success) {
             super.onPostExecute(success);
             if (success) {
-                eventBus.post(new PurchaseStateChangeEvent());
+                postPurchasesUpdated();
             }
         }
     }
+
+    private void postPurchasesUpdated() {
+        final PurchasesUpdatedEvent event = new PurchasesUpdatedEvent();
+        eventBus.post(event);
+        // Kept for subscribers that haven't moved to PurchasesUpdatedEvent yet
+        eventBus.post(new PurchaseStateChangeEvent(event));
+    }
 }
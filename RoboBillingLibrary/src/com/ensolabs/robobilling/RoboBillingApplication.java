@@ -22,8 +22,17 @@ import com.google.inject.Module;
 import com.google.inject.Singleton;
 import com.google.inject.util.Modules;
 import com.squareup.otto.Bus;
+import net.robotmedia.billing.BillingService;
 import net.robotmedia.billing.GoogleBillingController;
+import net.robotmedia.billing.model.BillingDB;
+import net.robotmedia.billing.model.EntitlementSnapshot;
+import net.robotmedia.billing.model.SQLiteTransactionStore;
+import net.robotmedia.billing.model.StorageOptions;
+import net.robotmedia.billing.model.TransactionManager;
+import net.robotmedia.billing.model.TransactionStore;
 import net.robotmedia.billing.utils.IConfiguration;
+import net.robotmedia.billing.utils.NonceJournal;
+import net.robotmedia.billing.utils.Security;
 import roboguice.RoboGuice;
 
 import java.util.ArrayList;
@@ -40,6 +49,7 @@ public abstract class RoboBillingApplication extends Application {
         protected void configure() {
             bind(Bus.class).in(Singleton.class);
             bind(User.class).in(Singleton.class);
+            bind(TransactionStore.class).to(getTransactionStoreClass()).in(Singleton.class);
         }
     }
 
@@ -73,11 +83,15 @@ public abstract class RoboBillingApplication extends Application {
 
     @Inject private RoboBillingController billingController;
     @Inject private User user;
+    @Inject private TransactionStore transactionStore;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        // Must be set before anything opens the billing database
+        BillingDB.setStorageOptions(getStorageOptions());
+
         String name = ManifestReader.getMetaDataValue(this, "billingMode");
         BillingMode billingMode = BillingMode.from(name);
         AbstractModule module;
@@ -100,17 +114,105 @@ public abstract class RoboBillingApplication extends Application {
 
         // Inject the billing controller, and set the configuration
         RoboGuice.getInjector(this).injectMembers(this);
+        TransactionManager.setStore(transactionStore);
+        if (shouldSnapshotEntitlements()) {
+            TransactionManager.setSnapshot(new EntitlementSnapshot(this));
+        }
+
+        if (billingMode != BillingMode.AMAZON && shouldPersistNonces()) {
+            Security.setNonceJournal(new NonceJournal(this));
+        }
 
         IConfiguration configuration = getConfiguration();
         if (configuration == null) {
             throw new ConfigurationNotSetException();
         }
         billingController.setConfiguration(getConfiguration());
+
+        if (billingMode != BillingMode.AMAZON && shouldPrebindBillingService()) {
+            BillingService.connect(this);
+        }
+
+        // Warm up the entitlement cache so isPurchased doesn't hit the database
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TransactionManager.loadEntitlements(RoboBillingApplication.this);
+            }
+        }, "RoboBilling-preload").start();
+    }
+
+    @Override
+    public void onTerminate() {
+        // Release the shared billing database connection
+        TransactionManager.close();
+        super.onTerminate();
     }
 
     public abstract IConfiguration getConfiguration();
     public abstract List<? extends Module> getModules();
 
+    /**
+     * Override to return true to bind to the Google Play billing service when
+     * the application starts, so the first request doesn't wait for it.
+     *
+     * @return true to pre-bind, false by default.
+     */
+    protected boolean shouldPrebindBillingService() {
+        return false;
+    }
+
+    /**
+     * Override to change how the billing database trades durability for
+     * speed. By default it uses write-ahead logging where available with the
+     * NORMAL synchronous level, and the platform's synchronous level
+     * elsewhere.
+     *
+     * @return storage options.
+     */
+    protected StorageOptions getStorageOptions() {
+        return new StorageOptions();
+    }
+
+    /**
+     * Override to keep transactions somewhere else than the SQLite billing
+     * database, for instance {@link net.robotmedia.billing.model.HeapTransactionStore}
+     * in tests or {@link net.robotmedia.billing.model.JournalTransactionStore}.
+     * The store is bound as a singleton.
+     *
+     * @return class of the transaction store.
+     */
+    protected Class<? extends TransactionStore> getTransactionStoreClass() {
+        return SQLiteTransactionStore.class;
+    }
+
+    /**
+     * Override to return true to keep a snapshot file of the purchased items,
+     * so that {@code isPurchased} can answer on cold start with a single file
+     * read, before the database is opened or the obfuscation key is derived.
+     * The snapshot holds the key product ids are hashed with, encrypted and
+     * authenticated with a key derived from the salt and a random value
+     * stored in the file. Since the salt ships with the app and the key isn't
+     * bound to the device, it's easier to tamper with than the obfuscated
+     * database.
+     *
+     * @return true to keep a snapshot, false by default.
+     */
+    protected boolean shouldSnapshotEntitlements() {
+        return false;
+    }
+
+    /**
+     * Override to return true to persist outstanding nonces, so that responses
+     * arriving after the process was killed (typically to a restore) are not
+     * rejected. Every nonce costs a synchronous shared preferences write.
+     *
+     * @return true to persist nonces, false by default.
+     */
+    protected boolean shouldPersistNonces() {
+        return false;
+    }
+
     public User getUser() {
         return user;
     }
@@ -19,9 +19,12 @@ import android.app.Activity;
 import android.app.PendingIntent;
 import android.content.Intent;
 import net.robotmedia.billing.model.Transaction;
+import net.robotmedia.billing.model.TransactionIterator;
 import net.robotmedia.billing.utils.IConfiguration;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface RoboBillingController {
     public static enum BillingStatus {
@@ -77,6 +80,15 @@ public interface RoboBillingController {
      */
     List<Transaction> getTransactions();
 
+    /**
+     * Iterates over all transactions stored locally in purchase time order,
+     * including cancellations and refunds, without loading them all in memory.
+     * The iterator must be closed unless it's iterated to the end.
+     *
+     * @return iterator over the transactions.
+     */
+    TransactionIterator iterateTransactions();
+
     /**
      * Lists all transactions of the specified item, stored locally.
      *
@@ -96,6 +108,26 @@ public interface RoboBillingController {
 
     boolean isPurchased(String itemId);
 
+    /**
+     * Returns whether each of the specified items has been registered as
+     * purchased in local memory. Much cheaper than calling
+     * {@link #isPurchased(String)} for each item.
+     *
+     * @param itemIds item ids.
+     * @return true or false for each item id.
+     */
+    Map<String, Boolean> isPurchased(Collection<String> itemIds);
+
+    /**
+     * Returns the number of purchases of each of the specified items. Refunded
+     * and cancelled purchases are not subtracted.
+     *
+     * @param itemIds item ids.
+     * @return number of purchases by item id, only for the items with at least
+     *         one purchase.
+     */
+    Map<String, Integer> countPurchases(Collection<String> itemIds);
+
     /**
      * Call this in your onStart method in your Activity/Fragment
      */
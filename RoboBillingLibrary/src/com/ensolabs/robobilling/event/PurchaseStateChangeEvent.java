@@ -17,13 +17,21 @@ package com.ensolabs.robobilling.event;
 
 import net.robotmedia.billing.model.Transaction;
 
+import java.util.Map;
+
+/**
+ * @deprecated subscribe to {@link PurchasesUpdatedEvent} instead. For this
+ *             release the billing controllers still post this event right
+ *             after each {@link PurchasesUpdatedEvent}, once per batch of
+ *             changes; it will then be removed.
+ */
+@Deprecated
 public class PurchaseStateChangeEvent {
     private String productId;
     private Transaction.PurchaseState purchaseState;
 
-    // Empty constructor for empty events fired from Amazon,
-    // There could be multiple purchases with this event
-    // TODO: keep a map of productId/PurchaseState instead of a single piece of info
+    // Empty constructor for events covering multiple or unknown purchases,
+    // see PurchasesUpdatedEvent for the map of changes
     public PurchaseStateChangeEvent() {
     }
 
@@ -33,6 +41,19 @@ public class PurchaseStateChangeEvent {
         this.purchaseState = purchaseState;
     }
 
+    /**
+     * Summarizes a batch of changes: the change if there is a single one,
+     * nothing otherwise.
+     */
+    public PurchaseStateChangeEvent(PurchasesUpdatedEvent event) {
+        final Map<String, Transaction.PurchaseState> changes = event.getChanges();
+        if (changes.size() == 1) {
+            final Map.Entry<String, Transaction.PurchaseState> change = changes.entrySet().iterator().next();
+            this.productId = change.getKey();
+            this.purchaseState = change.getValue();
+        }
+    }
+
     public String getProductId() {
         return productId;
     }
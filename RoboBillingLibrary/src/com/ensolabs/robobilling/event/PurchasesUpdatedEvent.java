@@ -0,0 +1,56 @@
+/*   Copyright 2012 Christopher Perry Inc.
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package com.ensolabs.robobilling.event;
+
+import net.robotmedia.billing.model.Transaction;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Posted once for a batch of purchase state changes, such as all the orders of
+ * a restore, with the latest state of each product.
+ */
+public class PurchasesUpdatedEvent {
+    private final Map<String, Transaction.PurchaseState> changes;
+
+    // Amazon flavored constructor, the changed products are not known
+    public PurchasesUpdatedEvent() {
+        this.changes = Collections.emptyMap();
+    }
+
+    public PurchasesUpdatedEvent(Map<String, Transaction.PurchaseState> changes) {
+        this.changes = Collections.unmodifiableMap(new LinkedHashMap<String, Transaction.PurchaseState>(changes));
+    }
+
+    /**
+     * @return the latest purchase state of every changed product, empty if the
+     *         changed products are not known.
+     */
+    public Map<String, Transaction.PurchaseState> getChanges() {
+        return changes;
+    }
+
+    public Set<String> getProductIds() {
+        return changes.keySet();
+    }
+
+    public Transaction.PurchaseState getPurchaseState(String productId) {
+        return changes.get(productId);
+    }
+}
@@ -22,6 +22,7 @@ import com.ensolabs.robobilling.event.BillingCheckedEvent;
 import com.ensolabs.robobilling.event.ItemInfoEvent;
 import com.ensolabs.robobilling.event.PurchaseIntentEvent;
 import com.ensolabs.robobilling.event.PurchaseStateChangeEvent;
+import com.ensolabs.robobilling.event.PurchasesUpdatedEvent;
 import com.ensolabs.robobilling.event.RequestPurchaseResponseEvent;
 import com.ensolabs.robobilling.event.SubscriptionCheckedEvent;
 import com.ensolabs.robobilling.event.TransactionsRestoredEvent;
@@ -38,7 +39,22 @@ public abstract class RoboBillingFragment extends RoboFragment {
     private boolean hasCheckedBilling;
     private RoboBillingFragment.EventSubscriber eventSubscriber;
 
-    public abstract void onPurchaseStateChanged(PurchaseStateChangeEvent event);
+    /**
+     * @deprecated override {@link #onPurchasesUpdated(PurchasesUpdatedEvent)},
+     *             this is only called once per batch of changes.
+     */
+    @Deprecated
+    public void onPurchaseStateChanged(PurchaseStateChangeEvent event) {
+    }
+
+    /**
+     * Called once for each batch of purchase state changes. By default calls
+     * {@link #onPurchaseStateChanged(PurchaseStateChangeEvent)} with the change
+     * if there is a single one, or with an empty event otherwise.
+     */
+    public void onPurchasesUpdated(PurchasesUpdatedEvent event) {
+        onPurchaseStateChanged(new PurchaseStateChangeEvent(event));
+    }
 
     public abstract void onBillingChecked(boolean supported);
 
@@ -90,8 +106,8 @@ public abstract class RoboBillingFragment extends RoboFragment {
         }
 
         @Subscribe
-        public final void onPurchaseStateChangedEvent(PurchaseStateChangeEvent event) {
-            onPurchaseStateChanged(event);
+        public final void onPurchasesUpdatedEvent(PurchasesUpdatedEvent event) {
+            onPurchasesUpdated(event);
         }
 
         @Subscribe
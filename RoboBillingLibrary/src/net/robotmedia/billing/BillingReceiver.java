@@ -21,6 +21,8 @@ import android.content.Intent;
 import com.ensolabs.robobilling.RoboBillingController;
 import com.ensolabs.robobilling.logging.Logger;
 import com.google.inject.Inject;
+import net.robotmedia.billing.model.TransactionManager;
+import net.robotmedia.billing.utils.Compatibility;
 import roboguice.RoboGuice;
 
 public class BillingReceiver extends BroadcastReceiver {
@@ -39,8 +41,31 @@ public class BillingReceiver extends BroadcastReceiver {
 
     @Inject private RoboBillingController billingController;
 
+    /**
+     * Hands the broadcast to the {@link BillingWorker} thread so signature
+     * verification, parsing and storage don't run on the main thread. Where
+     * available, the broadcast is kept alive with goAsync() until it has been
+     * handled and the transactions it carried are stored.
+     */
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
+        final Context applicationContext = context.getApplicationContext();
+        final Object pendingResult = Compatibility.goAsync(this);
+        BillingWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleIntent(applicationContext, intent);
+                } finally {
+                    // The process may be killed once the broadcast is finished
+                    TransactionManager.flush();
+                    Compatibility.finish(pendingResult);
+                }
+            }
+        });
+    }
+
+    private void handleIntent(Context context, Intent intent) {
         RoboGuice.getInjector(context).injectMembers(this);
 
         final String action = intent.getAction();
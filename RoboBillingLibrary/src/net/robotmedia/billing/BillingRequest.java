@@ -98,6 +98,21 @@ public abstract class BillingRequest {
             return "CONFIRM_NOTIFICATIONS";
         }
 
+        @Override
+        public void onResponseCode(ResponseCode response) {
+            super.onResponseCode(response);
+            if (response == ResponseCode.RESULT_OK) {
+                ((GoogleBillingController) billingController).onNotificationsConfirmed(notifyIds);
+            } else {
+                ((GoogleBillingController) billingController).onNotificationsNotConfirmed(notifyIds);
+            }
+        }
+
+        @Override
+        public void onSendFailed() {
+            ((GoogleBillingController) billingController).onNotificationsNotConfirmed(notifyIds);
+        }
+
     }
 
     public static class GetPurchaseInformation extends BillingRequest {
@@ -298,6 +313,14 @@ public abstract class BillingRequest {
         // Do nothing by default
     }
 
+    /**
+     * Called instead of {@link #onResponseCode(ResponseCode)} when the request
+     * couldn't be sent, or Market rejected it right away.
+     */
+    public void onSendFailed() {
+        // Do nothing by default
+    }
+
     protected void processOkResponse(Bundle response) {
         // Do nothing by default
     }
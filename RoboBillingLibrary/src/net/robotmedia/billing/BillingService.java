@@ -15,11 +15,12 @@
 
 package net.robotmedia.billing;
 
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.os.RemoteException;
 import com.android.vending.billing.IMarketBillingService;
 import com.ensolabs.robobilling.RoboBillingController;
@@ -29,37 +30,110 @@ import net.robotmedia.billing.utils.Compatibility;
 import roboguice.RoboGuice;
 import roboguice.service.RoboService;
 
-import java.util.LinkedList;
-
 import static net.robotmedia.billing.BillingRequest.*;
 
-public class BillingService extends RoboService implements ServiceConnection {
+/**
+ * Runs billing requests against the Market billing service. Commands are
+ * handled on a dedicated worker thread, which owns the request queue and the
+ * connection, so binder calls never block the main thread.
+ */
+public class BillingService extends RoboService implements MarketBillingConnection.Callback {
     private static final String LOG_TAG = "BillingService";
+    private static final String THREAD_NAME = "RoboBilling-service";
 
     private static enum Action {
         CHECK_BILLING_SUPPORTED,
         CHECK_SUBSCRIPTION_SUPPORTED,
         CONFIRM_NOTIFICATIONS,
+        CONNECT,
         GET_PURCHASE_INFORMATION,
         REQUEST_PURCHASE,
         REQUEST_SUBSCRIPTION,
         RESTORE_TRANSACTIONS
     }
 
-    private static final String ACTION_MARKET_BILLING_SERVICE = "com.android.vending.billing.MarketBillingService.BIND";
     private static final String EXTRA_DEVELOPER_PAYLOAD = "DEVELOPER_PAYLOAD";
     private static final String EXTRA_ITEM_ID = "ITEM_ID";
     private static final String EXTRA_NONCE = "EXTRA_NONCE";
     private static final String EXTRA_NOTIFY_IDS = "NOTIFY_IDS";
-    private static LinkedList<BillingRequest> mPendingRequests = new LinkedList<BillingRequest>();
 
-    private static IMarketBillingService mService;
+    // Only touched from the worker thread
+    private MarketBillingConnection mConnection;
+    private RequestQueue mRequests;
+    private int mLastStartId = -1;
+
+    private HandlerThread mWorkerThread;
+    private Handler mWorker;
     @Inject private RoboBillingController billingController;
 
     @Override
     public void onCreate() {
         super.onCreate();
         RoboGuice.getInjector(this).injectMembers(this);
+        mWorkerThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+        mConnection = new MarketBillingConnection(this, mWorker, this);
+        mRequests = new RequestQueue(mConnection, new RequestQueue.Callback() {
+            @Override
+            public void onRequestSent(long requestId, BillingRequest request) {
+                ((GoogleBillingController) billingController).onRequestSent(requestId, request);
+            }
+
+            @Override
+            public void onRemoteException(RemoteException e) {
+                BillingService.this.onRemoteException(e);
+            }
+
+            @Override
+            public void onBindFailed() {
+                stopSelf(mLastStartId);
+            }
+        });
+    }
+
+    /**
+     * Binds to the Market billing service ahead of the first request, so that
+     * it doesn't have to wait for the connection.
+     *
+     * @param context
+     */
+    public static void connect(Context context) {
+        final Intent intent = createIntent(context, Action.CONNECT);
+        context.startService(intent);
+    }
+
+    /**
+     * Sets for how long the Market billing service stays bound once there
+     * are no more requests to run.
+     *
+     * @param millis idle timeout in milliseconds.
+     */
+    public static void setIdleTimeout(long millis) {
+        MarketBillingConnection.setIdleTimeout(millis);
+    }
+
+    /**
+     * @return number of times the Market billing service has been connected.
+     */
+    public static int getConnectCount() {
+        return MarketBillingConnection.getConnectCount();
+    }
+
+    /**
+     * @return time in milliseconds the last connection to the Market billing
+     *         service took.
+     */
+    public static long getLastConnectLatency() {
+        return MarketBillingConnection.getLastConnectLatency();
+    }
+
+    /**
+     * @return average time in milliseconds connecting to the Market billing
+     *         service took.
+     */
+    public static long getAverageConnectLatency() {
+        return MarketBillingConnection.getAverageConnectLatency();
     }
 
     public static void checkBillingSupported(Context context) {
@@ -117,17 +191,6 @@ public class BillingService extends RoboService implements ServiceConnection {
         context.startService(intent);
     }
 
-    private void bindMarketBillingService() {
-        try {
-            final boolean bindResult = bindService(new Intent(ACTION_MARKET_BILLING_SERVICE), this, Context.BIND_AUTO_CREATE);
-            if (!bindResult) {
-                Logger.e(LOG_TAG, "Could not bind to MarketBillingService");
-            }
-        } catch (SecurityException e) {
-            Logger.e(LOG_TAG, "Could not bind to MarketBillingService", e);
-        }
-    }
-
     private void checkBillingSupported(int startId) {
         final String packageName = getPackageName();
         final CheckBillingSupported request = new CheckBillingSupported(getApplicationContext(), packageName, startId);
@@ -174,14 +237,14 @@ public class BillingService extends RoboService implements ServiceConnection {
     }
 
     @Override
-    public void onServiceConnected(ComponentName name, IBinder service) {
-        mService = IMarketBillingService.Stub.asInterface(service);
-        runPendingRequests();
+    public void onConnected() {
+        mRequests.runPending();
     }
 
     @Override
-    public void onServiceDisconnected(ComponentName name) {
-        mService = null;
+    public void onIdle() {
+        // Releases the binding in onDestroy unless a newer command arrived
+        stopSelf(mLastStartId);
     }
 
     // This is the old onStart method that will be called on the pre-2.0
@@ -189,21 +252,36 @@ public class BillingService extends RoboService implements ServiceConnection {
     // method will not be called.
     @Override
     public void onStart(Intent intent, int startId) {
-        handleCommand(intent, startId);
+        postCommand(intent, startId);
     }
 
     // @Override // Avoid compile errors on pre-2.0
     public int onStartCommand(Intent intent, int flags, int startId) {
-        handleCommand(intent, startId);
+        postCommand(intent, startId);
         return Compatibility.START_NOT_STICKY;
     }
 
+    private void postCommand(final Intent intent, final int startId) {
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                handleCommand(intent, startId);
+            }
+        });
+    }
+
     private void handleCommand(Intent intent, int startId) {
+        mConnection.cancelIdle();
+        mLastStartId = startId;
         final Action action = getActionFromIntent(intent);
         if (action == null) {
+            mRequests.runPending();
             return;
         }
         switch (action) {
+            case CONNECT:
+                mRequests.connect();
+                break;
             case CHECK_BILLING_SUPPORTED:
                 checkBillingSupported(startId);
                 break;
@@ -251,25 +329,6 @@ public class BillingService extends RoboService implements ServiceConnection {
         runRequestOrQueue(request);
     }
 
-    private void runPendingRequests() {
-        BillingRequest request;
-        int maxStartId = -1;
-        while ((request = mPendingRequests.peek()) != null) {
-            if (runIfConnected(request)) {
-                mPendingRequests.remove();
-                if (maxStartId < request.getStartId()) {
-                    maxStartId = request.getStartId();
-                }
-            } else {
-                bindMarketBillingService();
-                return;
-            }
-        }
-        if (maxStartId >= 0) {
-            stopSelf(maxStartId);
-        }
-    }
-
     /**
      * Called when a remote exception occurs while trying to execute the
      * {@link BillingRequest#run(IMarketBillingService)} method.
@@ -277,49 +336,25 @@ public class BillingService extends RoboService implements ServiceConnection {
      */
     protected void onRemoteException(RemoteException e) {
         Logger.w(LOG_TAG, "Remote billing service crashed "+e);
-        mService = null;
-    }
-
-    /**
-     * Runs the given billing request if the service is already connected.
-     * @param request the billing request
-     * @return true if the request ran successfully; false if the service
-     * is not connected or there was an error when trying to use it
-     */
-    private boolean runIfConnected(BillingRequest request) {
-        if (mService == null) return false;
-        try {
-            Logger.v(LOG_TAG, "Running request...");
-            final long requestId = request.run(mService);
-            Logger.v(LOG_TAG, "Request ID " + requestId + " returned");
-            ((GoogleBillingController) billingController).onRequestSent(requestId, request);
-            return true;
-        } catch (RemoteException e) {
-            onRemoteException(e);
-        }
-        return false;
+        mConnection.onServiceFailed();
     }
 
     private void runRequestOrQueue(BillingRequest request) {
-        mPendingRequests.add(request);
-        if (mService == null) {
-            bindMarketBillingService();
-        } else {
-            runPendingRequests();
-        }
+        mRequests.add(request);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        // Ensure we're not leaking Android Market billing service
-        if (mService != null) {
-            try {
-                unbindService(this);
-            } catch (IllegalArgumentException e) {
-                // This might happen if the service was disconnected
+        final HandlerThread workerThread = mWorkerThread;
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                // Ensure we're not leaking Android Market billing service
+                mConnection.unbind();
+                workerThread.quit();
             }
-        }
+        });
     }
 
 }
@@ -0,0 +1,51 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * A single background thread on which Market Billing broadcasts are handled.
+ * Work runs serially in the order it was posted, so notifications are
+ * processed in the order they were received.
+ */
+class BillingWorker {
+    private static final String THREAD_NAME = "RoboBilling-worker";
+    private static Handler handler;
+
+    private static synchronized Handler getHandler() {
+        if (handler == null) {
+            final HandlerThread thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    static void post(Runnable runnable) {
+        getHandler().post(runnable);
+    }
+
+    static void postDelayed(Runnable runnable, long delayMillis) {
+        getHandler().postDelayed(runnable, delayMillis);
+    }
+
+    static void removeCallbacks(Runnable runnable) {
+        getHandler().removeCallbacks(runnable);
+    }
+}
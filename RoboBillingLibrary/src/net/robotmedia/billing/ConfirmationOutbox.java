@@ -0,0 +1,216 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.content.Context;
+import com.ensolabs.robobilling.logging.Logger;
+import net.robotmedia.billing.model.TransactionManager;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Durable queue of notifications waiting to be confirmed. Ids are written to
+ * the transaction store when queued and only deleted once Market answers the
+ * CONFIRM_NOTIFICATIONS request with RESULT_OK, so pending confirmations
+ * survive process death as long as the transactions do. The store is only
+ * accessed on the {@link BillingWorker} thread. Queued ids are sent in
+ * batches, as soon as a batch is full or when the window elapses. Ids whose
+ * confirmation fails are sent again after a delay that doubles with each
+ * consecutive failure.
+ */
+class ConfirmationOutbox {
+    private static final String LOG_TAG = "ConfirmationOutbox";
+    static final int DEFAULT_BATCH_SIZE = 50;
+    static final long DEFAULT_WINDOW = 1000;
+    private static final long MIN_RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    private final Context context;
+    // Ids waiting to be sent with the next batch
+    private final Set<String> queued = new LinkedHashSet<String>();
+    // Ids stored in the outbox and not yet confirmed, whether sent or not
+    private final Set<String> outstanding = new HashSet<String>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long window = DEFAULT_WINDOW;
+    private long retryDelay = MIN_RETRY_DELAY;
+    private boolean retryScheduled;
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable retrier = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConfirmationOutbox.this) {
+                retryScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    ConfirmationOutbox(Context context) {
+        this.context = context;
+    }
+
+    synchronized void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    synchronized void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Stores the given notifications and queues them for confirmation, on the
+     * worker thread. Must only be called once the transactions of the
+     * notifications are stored.
+     *
+     * @param notifyIds ids of the notifications to confirm.
+     */
+    void add(final String[] notifyIds) {
+        if (notifyIds.length == 0) {
+            return;
+        }
+        BillingWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                store(notifyIds);
+            }
+        });
+    }
+
+    private void store(String[] notifyIds) {
+        TransactionManager.addConfirmations(context, notifyIds);
+        final boolean flushNow;
+        final boolean schedule;
+        synchronized (this) {
+            final boolean wasEmpty = queued.isEmpty();
+            for (String notifyId : notifyIds) {
+                queued.add(notifyId);
+                outstanding.add(notifyId);
+            }
+            flushNow = window <= 0 || queued.size() >= batchSize;
+            schedule = wasEmpty && !flushNow;
+        }
+        if (flushNow) {
+            BillingWorker.removeCallbacks(flusher);
+            flush();
+        } else if (schedule) {
+            BillingWorker.postDelayed(flusher, window);
+        }
+    }
+
+    /**
+     * Sends all queued notifications in a single CONFIRM_NOTIFICATIONS request.
+     */
+    void flush() {
+        final String[] notifyIds;
+        synchronized (this) {
+            if (queued.isEmpty()) {
+                return;
+            }
+            notifyIds = queued.toArray(new String[queued.size()]);
+            queued.clear();
+        }
+        Logger.d(LOG_TAG, "Confirming " + notifyIds.length + " notifications");
+        BillingService.confirmNotifications(context, notifyIds);
+    }
+
+    /**
+     * Returns true if the notification is stored in the outbox, meaning its
+     * transaction was already stored and only the confirmation is missing.
+     *
+     * @param notifyId notification id.
+     */
+    synchronized boolean contains(String notifyId) {
+        return outstanding.contains(notifyId);
+    }
+
+    /**
+     * Called once Market acknowledged the confirmation of the given
+     * notifications. Removes them from the outbox, on the worker thread.
+     *
+     * @param notifyIds ids of the confirmed notifications.
+     */
+    void onConfirmed(final String[] notifyIds) {
+        BillingWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                remove(notifyIds);
+            }
+        });
+    }
+
+    private void remove(String[] notifyIds) {
+        TransactionManager.removeConfirmations(context, notifyIds);
+        synchronized (this) {
+            for (String notifyId : notifyIds) {
+                outstanding.remove(notifyId);
+            }
+            retryDelay = MIN_RETRY_DELAY;
+        }
+    }
+
+    /**
+     * Called when the confirmation of the given notifications wasn't sent or
+     * was answered with another response than RESULT_OK. Queues them again,
+     * to be sent after the retry delay.
+     *
+     * @param notifyIds ids of the notifications that weren't confirmed.
+     */
+    void onConfirmationFailed(String[] notifyIds) {
+        final long delay;
+        synchronized (this) {
+            for (String notifyId : notifyIds) {
+                // Unless confirmed by another request in the meantime
+                if (outstanding.contains(notifyId)) {
+                    queued.add(notifyId);
+                }
+            }
+            if (queued.isEmpty() || retryScheduled) {
+                return;
+            }
+            retryScheduled = true;
+            delay = retryDelay;
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+        Logger.w(LOG_TAG, "Confirming " + notifyIds.length + " notifications again in " + delay + " ms");
+        BillingWorker.removeCallbacks(flusher);
+        BillingWorker.postDelayed(retrier, delay);
+    }
+
+    /**
+     * Loads the confirmations left over by a previous process and sends them.
+     * Called on the worker thread.
+     */
+    void restore() {
+        final List<String> notifyIds = TransactionManager.getConfirmations(context);
+        if (notifyIds.isEmpty()) {
+            return;
+        }
+        Logger.d(LOG_TAG, "Restored " + notifyIds.size() + " pending confirmations");
+        synchronized (this) {
+            queued.addAll(notifyIds);
+            outstanding.addAll(notifyIds);
+        }
+        flush();
+    }
+}
@@ -20,11 +20,14 @@ import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import com.ensolabs.robobilling.AbstractBillingController;
 import com.ensolabs.robobilling.event.BillingCheckedEvent;
 import com.ensolabs.robobilling.event.PurchaseIntentEvent;
 import com.ensolabs.robobilling.event.PurchaseStateChangeEvent;
+import com.ensolabs.robobilling.event.PurchasesUpdatedEvent;
 import com.ensolabs.robobilling.event.RequestPurchaseResponseEvent;
 import com.ensolabs.robobilling.event.SubscriptionCheckedEvent;
 import com.ensolabs.robobilling.event.TransactionsRestoredEvent;
@@ -36,38 +39,91 @@ import net.robotmedia.billing.model.TransactionManager;
 import net.robotmedia.billing.security.DefaultSignatureValidator;
 import net.robotmedia.billing.security.ISignatureValidator;
 import net.robotmedia.billing.utils.Compatibility;
+import net.robotmedia.billing.utils.IConfiguration;
 import net.robotmedia.billing.utils.Security;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GoogleBillingController extends AbstractBillingController {
     public static final String LOG_TAG = "GoogleBillingController";
-    private static final String JSON_NONCE = "nonce";
-    private static final String JSON_ORDERS = "orders";
+    private static final long DEFAULT_NOTIFICATION_WINDOW = 250;
     private boolean debug = false;
-
-    private BillingStatus billingStatus = BillingStatus.UNKNOWN;
-    private BillingStatus subscriptionStatus = BillingStatus.UNKNOWN;
-    private HashMap<String, Set<String>> manualConfirmations = new HashMap<String, Set<String>>();
-    private HashMap<Long, BillingRequest> pendingRequests = new HashMap<Long, BillingRequest>();
-
-    private Set<String> automaticConfirmations = new HashSet<String>();
+    private long notificationWindow = DEFAULT_NOTIFICATION_WINDOW;
+    private long purchaseUpdateWindow = 0;
+
+    // The controller is called from the app, the receiver and the service threads
+    private volatile BillingStatus billingStatus = BillingStatus.UNKNOWN;
+    private volatile BillingStatus subscriptionStatus = BillingStatus.UNKNOWN;
+    private final ConcurrentHashMap<String, Set<String>> manualConfirmations = new ConcurrentHashMap<String, Set<String>>();
+    private final RequestRegistry<BillingRequest> pendingRequests = new RequestRegistry<BillingRequest>();
+
+    // Used as a concurrent set of item ids
+    private final ConcurrentHashMap<String, Boolean> automaticConfirmations = new ConcurrentHashMap<String, Boolean>();
+    private final Set<String> pendingNotifications = new LinkedHashSet<String>();
+    private final Runnable notificationFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flushNotifications();
+        }
+    };
+    private final Map<String, Transaction.PurchaseState> pendingPurchaseUpdates = new LinkedHashMap<String, Transaction.PurchaseState>();
+    private boolean purchaseUpdatesScheduled;
+    private final Runnable purchaseUpdateFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flushPurchaseUpdates();
+        }
+    };
     private Context context;
     private Bus eventBus;
+    private Handler mainHandler;
+    private ISignatureValidator signatureValidator;
+    private final ConfirmationOutbox confirmationOutbox;
 
     @Inject
     public GoogleBillingController(Context context, Bus eventBus) {
         super(context);
         this.context = context;
         this.eventBus = eventBus;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.confirmationOutbox = new ConfirmationOutbox(context);
         Logger.v(LOG_TAG, "Constructor called");
+
+        // Send the confirmations a previous process didn't get acknowledged
+        BillingWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                confirmationOutbox.restore();
+            }
+        });
+    }
+
+    /**
+     * Posts the event to the event bus on the main thread. Responses are
+     * handled on background threads, while the bus expects the main thread.
+     *
+     * @param event event to post.
+     */
+    private void postEvent(final Object event) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            eventBus.post(event);
+        } else {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    eventBus.post(event);
+                }
+            });
+        }
     }
 
     /**
@@ -78,12 +134,42 @@ public class GoogleBillingController extends AbstractBillingController {
      * @param notificationId id of the notification.
      */
     private final void addManualConfirmation(String itemId, String notificationId) {
-        Set<String> notifications = manualConfirmations.get(itemId);
-        if (notifications == null) {
-            notifications = new HashSet<String>();
-            manualConfirmations.put(itemId, notifications);
+        while (true) {
+            Set<String> notifications = manualConfirmations.get(itemId);
+            if (notifications == null) {
+                final Set<String> created = Collections.synchronizedSet(new HashSet<String>());
+                notifications = manualConfirmations.putIfAbsent(itemId, created);
+                if (notifications == null) {
+                    notifications = created;
+                }
+            }
+            synchronized (notifications) {
+                // Retry if confirmNotifications took the set in the meantime
+                if (manualConfirmations.get(itemId) == notifications) {
+                    notifications.add(notificationId);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setConfiguration(IConfiguration config) {
+        super.setConfiguration(config);
+        signatureValidator = new DefaultSignatureValidator(config);
+    }
+
+    /**
+     * Returns the validator for signed responses. A single instance is reused
+     * so the public key is only parsed once.
+     *
+     * @return signature validator.
+     */
+    private ISignatureValidator getSignatureValidator() {
+        if (signatureValidator == null) {
+            signatureValidator = new DefaultSignatureValidator(configuration);
         }
-        notifications.add(notificationId);
+        return signatureValidator;
     }
 
     @Override
@@ -117,9 +203,13 @@ public class GoogleBillingController extends AbstractBillingController {
      *         otherwise.
      */
     public boolean confirmNotifications(Context context, String itemId) {
-        final Set<String> notifications = manualConfirmations.get(itemId);
+        final Set<String> notifications = manualConfirmations.remove(itemId);
         if (notifications != null) {
-            confirmNotifications(context, notifications.toArray(new String[]{}));
+            final String[] notifyIds;
+            synchronized (notifications) {
+                notifyIds = notifications.toArray(new String[notifications.size()]);
+            }
+            confirmNotifications(context, notifyIds);
             return true;
         } else {
             return false;
@@ -127,13 +217,26 @@ public class GoogleBillingController extends AbstractBillingController {
     }
 
     /**
-     * Requests to confirm all specified notifications.
+     * Queues all specified notifications in the confirmation outbox. They are
+     * sent in batches and kept until Market acknowledges them.
      *
      * @param context
      * @param notifyIds array with the ids of all the notifications to confirm.
      */
     private void confirmNotifications(Context context, String[] notifyIds) {
-        BillingService.confirmNotifications(context, notifyIds);
+        confirmationOutbox.add(notifyIds);
+    }
+
+    /**
+     * Sets how many confirmations are sent together and for how long they are
+     * collected before being sent. A window of zero sends them right away.
+     *
+     * @param batchSize maximum number of notifications held before sending.
+     * @param window    window in milliseconds.
+     */
+    public void setConfirmationBatching(int batchSize, long window) {
+        confirmationOutbox.setBatchSize(batchSize);
+        confirmationOutbox.setWindow(window);
     }
 
     /**
@@ -145,21 +248,43 @@ public class GoogleBillingController extends AbstractBillingController {
      * @return number of purchases for the specified item.
      */
     public int countPurchases(Context context, String itemId) {
-        final byte[] salt = getSalt();
-        itemId = salt != null ? Security.obfuscate(context, salt, itemId) : itemId;
-        return TransactionManager.countPurchases(context, itemId);
+        return TransactionManager.countPurchases(context, getProductKey(context, itemId),
+                getStoredProductIdIfNeeded(context, itemId));
     }
 
     /**
-     * Requests purchase information for the specified notification.
+     * Requests purchase information for the specified notifications with a
+     * single request.
      *
      * @param context
-     * @param notifyId id of the notification whose purchase information is
-     *                 requested.
+     * @param notifyIds ids of the notifications whose purchase information is
+     *                  requested.
      */
-    private void getPurchaseInformation(Context context, String notifyId) {
+    private void getPurchaseInformation(Context context, String[] notifyIds) {
         final long nonce = Security.generateNonce();
-        BillingService.getPurchaseInformation(context, new String[]{notifyId}, nonce);
+        BillingService.getPurchaseInformation(context, notifyIds, nonce);
+    }
+
+    /**
+     * Sets for how long IN_APP_NOTIFY messages are collected before their
+     * purchase information is requested in a single request. Zero requests it
+     * for each notification as soon as it arrives.
+     *
+     * @param millis window in milliseconds.
+     */
+    public void setNotificationWindow(long millis) {
+        notificationWindow = millis;
+    }
+
+    /**
+     * Sets for how long purchase state changes are collected before a single
+     * {@link PurchasesUpdatedEvent} is posted for all of them. Zero posts one
+     * event for each PURCHASE_STATE_CHANGED message.
+     *
+     * @param millis window in milliseconds.
+     */
+    public void setPurchaseUpdateWindow(long millis) {
+        purchaseUpdateWindow = millis;
     }
 
     /**
@@ -180,18 +305,85 @@ public class GoogleBillingController extends AbstractBillingController {
         }
 
         Logger.v(LOG_TAG, "onBillingChecked: supported = " + supported);
-        eventBus.post(new BillingCheckedEvent(supported));
+        postEvent(new BillingCheckedEvent(supported));
     }
 
     /**
-     * Called when an IN_APP_NOTIFY message is received.
+     * Called when an IN_APP_NOTIFY message is received. Notifications arriving
+     * within the notification window are batched into one
+     * GET_PURCHASE_INFORMATION request.
      *
      * @param notifyId notification id.
+     * @see #setNotificationWindow(long)
      */
     protected void onNotify(String notifyId) {
         Logger.d(LOG_TAG, "Notification " + notifyId + " available");
 
-        getPurchaseInformation(context, notifyId);
+        final boolean schedule;
+        synchronized (pendingNotifications) {
+            if (!pendingNotifications.add(notifyId)) {
+                return;
+            }
+            schedule = pendingNotifications.size() == 1;
+        }
+        if (notificationWindow <= 0) {
+            flushNotifications();
+        } else if (schedule) {
+            BillingWorker.postDelayed(notificationFlusher, notificationWindow);
+        }
+    }
+
+    /**
+     * Requests purchase information for all notifications collected since the
+     * last flush, using one request and one nonce.
+     */
+    private void flushNotifications() {
+        final List<String> notifyIds = new ArrayList<String>();
+        final List<String> storedIds = new ArrayList<String>();
+        synchronized (pendingNotifications) {
+            for (String notifyId : pendingNotifications) {
+                // Ids only enter the outbox once their transactions are on disk, so
+                // redelivered notifications found there only lack confirmation
+                if (confirmationOutbox.contains(notifyId)) {
+                    storedIds.add(notifyId);
+                } else {
+                    notifyIds.add(notifyId);
+                }
+            }
+            pendingNotifications.clear();
+        }
+        if (!storedIds.isEmpty()) {
+            confirmNotifications(context, storedIds.toArray(new String[storedIds.size()]));
+        }
+        if (!notifyIds.isEmpty()) {
+            Logger.d(LOG_TAG, "Requesting purchase information for " + notifyIds.size() + " notifications");
+            getPurchaseInformation(context, notifyIds.toArray(new String[notifyIds.size()]));
+        }
+    }
+
+    /**
+     * Called after Market acknowledged a
+     * {@link net.robotmedia.billing.BillingRequest.ConfirmNotifications} request
+     * with RESULT_OK. Removes the notifications from the confirmation outbox.
+     *
+     * @param notifyIds ids of the confirmed notifications.
+     */
+    protected void onNotificationsConfirmed(String[] notifyIds) {
+        Logger.d(LOG_TAG, notifyIds.length + " notifications confirmed");
+        confirmationOutbox.onConfirmed(notifyIds);
+    }
+
+    /**
+     * Called when a
+     * {@link net.robotmedia.billing.BillingRequest.ConfirmNotifications} request
+     * couldn't be sent or got another response than RESULT_OK. The
+     * notifications are confirmed again later.
+     *
+     * @param notifyIds ids of the notifications that weren't confirmed.
+     */
+    protected void onNotificationsNotConfirmed(String[] notifyIds) {
+        Logger.w(LOG_TAG, notifyIds.length + " notifications not confirmed");
+        confirmationOutbox.onConfirmationFailed(notifyIds);
     }
 
     /**
@@ -206,7 +398,7 @@ public class GoogleBillingController extends AbstractBillingController {
      */
     protected void onPurchaseIntent(String itemId, PendingIntent purchaseIntent) {
         Logger.d(LOG_TAG, "Purchase intent event for item " + itemId + " being posted");
-        eventBus.post(new PurchaseIntentEvent(itemId, purchaseIntent));
+        postEvent(new PurchaseIntentEvent(itemId, purchaseIntent));
     }
 
     /**
@@ -215,7 +407,9 @@ public class GoogleBillingController extends AbstractBillingController {
      * received. Registers all transactions in local memory and confirms those
      * who can be confirmed automatically.
      * <p/>
-     * Posts a {@link com.ensolabs.robobilling.event.PurchaseStateChangeEvent} to the event bus
+     * Posts a {@link com.ensolabs.robobilling.event.PurchasesUpdatedEvent} to the event bus
+     * with all the changes, possibly together with the changes of other messages
+     * received within the purchase update window.
      *
      * @param signedData signed JSON data received from the Market Billing service.
      * @param signature  data signature.
@@ -235,36 +429,77 @@ public class GoogleBillingController extends AbstractBillingController {
                 Logger.w(LOG_TAG, "Empty signature requires debug mode");
                 return;
             }
-            final ISignatureValidator validator = new DefaultSignatureValidator(configuration);
-            if (!validator.validate(signedData, signature)) {
+            if (!getSignatureValidator().validate(signedData, signature)) {
                 Logger.w(LOG_TAG, "Signature does not match data.");
                 return;
             }
         }
 
-        List<Transaction> purchases;
+        final List<Transaction> stored = new ArrayList<Transaction>();
         try {
-            JSONObject jObject = new JSONObject(signedData);
-            if (!verifyNonce(jObject)) {
+            final boolean nonceValid = PurchaseDataParser.parse(signedData, new PurchaseDataParser.Callback() {
+                @Override
+                public boolean onNonce(long nonce) {
+                    return Security.consumeNonce(nonce);
+                }
+
+                @Override
+                public void onTransactions(List<Transaction> transactions) {
+                    onPurchasesParsed(transactions, stored);
+                }
+            }, PurchaseDataParser.DEFAULT_CHUNK_SIZE);
+            if (!nonceValid) {
                 Logger.w(LOG_TAG, "Invalid nonce");
-                return;
             }
-            purchases = parsePurchases(jObject);
         } catch (JSONException e) {
             Logger.e(LOG_TAG, "JSON exception: ", e);
-            return;
         }
+        confirmStoredPurchases(stored);
+        schedulePurchaseUpdates();
+    }
+
+    /**
+     * Stores a chunk of parsed purchases and notifies them. Their
+     * notifications are confirmed once the whole message is on disk.
+     *
+     * @param purchases purchases parsed from the signed data.
+     * @param stored    purchases queued so far, only their product and
+     *                  notification ids are kept.
+     */
+    private void onPurchasesParsed(List<Transaction> purchases, List<Transaction> stored) {
+        storeTransactions(context, purchases);
+        synchronized (pendingPurchaseUpdates) {
+            for (Transaction p : purchases) {
+                // Keep the latest state, in order of first change
+                pendingPurchaseUpdates.put(p.productId, p.purchaseState);
+            }
+        }
+        for (Transaction p : purchases) {
+            stored.add(new Transaction(null, p.productId, null, p.purchaseState, p.notificationId, 0, null));
+        }
+    }
 
+    /**
+     * Waits for the given purchases to be on disk, then confirms their
+     * notifications.
+     */
+    private void confirmStoredPurchases(List<Transaction> purchases) {
+        if (purchases.isEmpty()) {
+            return;
+        }
+        // Market doesn't resend confirmed notifications, the purchases must be on disk first
+        if (!TransactionManager.flush()) {
+            Logger.w(LOG_TAG, "Failed to store " + purchases.size() + " purchases, not confirming them");
+            return;
+        }
         ArrayList<String> confirmations = new ArrayList<String>();
         for (Transaction p : purchases) {
-            if (p.notificationId != null && automaticConfirmations.contains(p.productId)) {
+            if (p.notificationId != null && automaticConfirmations.containsKey(p.productId)) {
                 confirmations.add(p.notificationId);
             } else {
                 // TODO: Discriminate between purchases, cancellations and refunds.
                 addManualConfirmation(p.productId, p.notificationId);
             }
-            storeTransaction(context, p);
-            eventBus.post(new PurchaseStateChangeEvent(p.productId, p.purchaseState));
         }
         if (!confirmations.isEmpty()) {
             final String[] notifyIds = confirmations.toArray(new String[confirmations.size()]);
@@ -272,6 +507,39 @@ public class GoogleBillingController extends AbstractBillingController {
         }
     }
 
+    private void schedulePurchaseUpdates() {
+        if (purchaseUpdateWindow <= 0) {
+            flushPurchaseUpdates();
+            return;
+        }
+        synchronized (pendingPurchaseUpdates) {
+            if (pendingPurchaseUpdates.isEmpty() || purchaseUpdatesScheduled) {
+                return;
+            }
+            purchaseUpdatesScheduled = true;
+        }
+        mainHandler.postDelayed(purchaseUpdateFlusher, purchaseUpdateWindow);
+    }
+
+    /**
+     * Posts a {@link PurchasesUpdatedEvent} with the changes collected so far,
+     * if any, followed by the deprecated {@link PurchaseStateChangeEvent}.
+     */
+    private void flushPurchaseUpdates() {
+        final PurchasesUpdatedEvent event;
+        synchronized (pendingPurchaseUpdates) {
+            purchaseUpdatesScheduled = false;
+            if (pendingPurchaseUpdates.isEmpty()) {
+                return;
+            }
+            event = new PurchasesUpdatedEvent(pendingPurchaseUpdates);
+            pendingPurchaseUpdates.clear();
+        }
+        postEvent(event);
+        // Kept for subscribers that haven't moved to PurchasesUpdatedEvent yet
+        postEvent(new PurchaseStateChangeEvent(event));
+    }
+
     /**
      * Called after a {@link net.robotmedia.billing.BillingRequest} is sent.
      *
@@ -282,9 +550,16 @@ public class GoogleBillingController extends AbstractBillingController {
         Logger.d(LOG_TAG, "Request " + requestId + " of type " + request.getRequestType() + " sent");
 
         if (request.isSuccess()) {
-            pendingRequests.put(requestId, request);
-        } else if (request.hasNonce()) {
-            Security.removeNonce(request.getNonce());
+            final BillingRequest.ResponseCode response = pendingRequests.register(requestId, request);
+            if (response != null) {
+                // The response was handled before the request was registered
+                request.onResponseCode(response);
+            }
+        } else {
+            if (request.hasNonce()) {
+                Security.removeNonce(request.getNonce());
+            }
+            request.onSendFailed();
         }
     }
 
@@ -299,9 +574,8 @@ public class GoogleBillingController extends AbstractBillingController {
         final BillingRequest.ResponseCode response = BillingRequest.ResponseCode.valueOf(responseCode);
         Logger.d(LOG_TAG, "Request " + requestId + " received response " + response);
 
-        final BillingRequest request = pendingRequests.get(requestId);
+        final BillingRequest request = pendingRequests.complete(requestId, response);
         if (request != null) {
-            pendingRequests.remove(requestId);
             request.onResponseCode(response);
         }
     }
@@ -322,37 +596,14 @@ public class GoogleBillingController extends AbstractBillingController {
             billingStatus = BillingStatus.SUPPORTED;
         }
 
-        eventBus.post(new SubscriptionCheckedEvent(supported));
+        postEvent(new SubscriptionCheckedEvent(supported));
     }
 
     /**
      * Posts a {@link com.ensolabs.robobilling.event.TransactionsRestoredEvent} to the event bus
      */
     protected void onTransactionsRestored() {
-        eventBus.post(new TransactionsRestoredEvent());
-    }
-
-    /**
-     * Parse all purchases from the JSON data received from the Market Billing
-     * service.
-     *
-     * @param data JSON data received from the Market Billing service.
-     * @return list of purchases.
-     * @throws JSONException if the data couldn't be properly parsed.
-     */
-    private static List<Transaction> parsePurchases(JSONObject data) throws JSONException {
-        ArrayList<Transaction> purchases = new ArrayList<Transaction>();
-        JSONArray orders = data.optJSONArray(JSON_ORDERS);
-        int numTransactions = 0;
-        if (orders != null) {
-            numTransactions = orders.length();
-        }
-        for (int i = 0; i < numTransactions; i++) {
-            JSONObject jElement = orders.getJSONObject(i);
-            Transaction p = Transaction.parse(jElement);
-            purchases.add(p);
-        }
-        return purchases;
+        postEvent(new TransactionsRestoredEvent());
     }
 
     @Override
@@ -373,7 +624,7 @@ public class GoogleBillingController extends AbstractBillingController {
     @Override
     public void requestPurchase(String itemId, boolean confirm, String developerPayload) {
         if (confirm) {
-            automaticConfirmations.add(itemId);
+            automaticConfirmations.put(itemId, Boolean.TRUE);
         }
         BillingService.requestPurchase(context, itemId, developerPayload);
     }
@@ -386,7 +637,7 @@ public class GoogleBillingController extends AbstractBillingController {
     @Override
     public void requestSubscription(String itemId, boolean confirm, String developerPayload) {
         if (confirm) {
-            automaticConfirmations.add(itemId);
+            automaticConfirmations.put(itemId, Boolean.TRUE);
         }
         BillingService.requestSubscription(context, itemId, developerPayload);
     }
@@ -416,16 +667,6 @@ public class GoogleBillingController extends AbstractBillingController {
         }
     }
 
-    private static boolean verifyNonce(JSONObject data) {
-        long nonce = data.optLong(JSON_NONCE);
-        if (Security.isNonceKnown(nonce)) {
-            Security.removeNonce(nonce);
-            return true;
-        } else {
-            return false;
-        }
-    }
-
     /**
      * Posts a {@link com.ensolabs.robobilling.event.RequestPurchaseResponseEvent} to the event bus
      *
@@ -433,7 +674,7 @@ public class GoogleBillingController extends AbstractBillingController {
      * @param response
      */
     protected void onRequestPurchaseResponse(String itemId, BillingRequest.ResponseCode response) {
-        eventBus.post(new RequestPurchaseResponseEvent(itemId, response));
+        postEvent(new RequestPurchaseResponseEvent(itemId, response));
     }
 
 }
@@ -0,0 +1,207 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import com.android.vending.billing.IMarketBillingService;
+import com.ensolabs.robobilling.logging.Logger;
+
+/**
+ * Manages the binding to Market's billing service for {@link BillingService}.
+ * Instead of unbinding as soon as there is no more work, the binding is kept
+ * for an idle period so that subsequent requests don't pay for a new bind.
+ * Also keeps track of how long it takes to connect.
+ * <p/>
+ * Apart from the static metrics, the connection must only be used from the
+ * thread of the handler it was created with; connection events are
+ * delivered to that thread too.
+ */
+class MarketBillingConnection implements ServiceConnection {
+
+    /**
+     * Receives the connection events.
+     */
+    interface Callback {
+        /**
+         * Called when the Market billing service is connected.
+         */
+        void onConnected();
+
+        /**
+         * Called when the connection has been idle for the idle timeout.
+         */
+        void onIdle();
+    }
+
+    private static final String LOG_TAG = "MarketBillingConnection";
+    private static final String ACTION_MARKET_BILLING_SERVICE = "com.android.vending.billing.MarketBillingService.BIND";
+    static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static int connectCount;
+    private static long lastConnectLatency;
+    private static long totalConnectLatency;
+
+    private final Context context;
+    private final Callback callback;
+    private final Handler handler;
+    private IMarketBillingService service;
+    private boolean bound;
+    private long bindTime;
+    private final Runnable idleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Logger.v(LOG_TAG, "Connection idle");
+            callback.onIdle();
+        }
+    };
+
+    MarketBillingConnection(Context context, Handler handler, Callback callback) {
+        this.context = context;
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    static void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+    }
+
+    static synchronized int getConnectCount() {
+        return connectCount;
+    }
+
+    static synchronized long getLastConnectLatency() {
+        return lastConnectLatency;
+    }
+
+    static synchronized long getAverageConnectLatency() {
+        return connectCount == 0 ? 0 : totalConnectLatency / connectCount;
+    }
+
+    private static synchronized void recordConnectLatency(long latency) {
+        connectCount++;
+        lastConnectLatency = latency;
+        totalConnectLatency += latency;
+    }
+
+    /**
+     * Returns the Market billing service, or null if it isn't connected.
+     */
+    IMarketBillingService getService() {
+        return service;
+    }
+
+    /**
+     * Binds to the Market billing service unless already bound or binding.
+     *
+     * @return false if the binding could not be requested.
+     */
+    boolean bind() {
+        if (bound) {
+            return true;
+        }
+        try {
+            bound = bindService();
+            if (!bound) {
+                Logger.e(LOG_TAG, "Could not bind to MarketBillingService");
+            }
+        } catch (SecurityException e) {
+            Logger.e(LOG_TAG, "Could not bind to MarketBillingService", e);
+        }
+        return bound;
+    }
+
+    /**
+     * Requests the binding. Overridden by tests, which can't bind.
+     */
+    boolean bindService() {
+        bindTime = SystemClock.elapsedRealtime();
+        return context.bindService(new Intent(ACTION_MARKET_BILLING_SERVICE), this, Context.BIND_AUTO_CREATE);
+    }
+
+    boolean isBound() {
+        return bound;
+    }
+
+    void unbind() {
+        cancelIdle();
+        if (bound) {
+            try {
+                context.unbindService(this);
+            } catch (IllegalArgumentException e) {
+                // This might happen if the service was disconnected
+            }
+        }
+        bound = false;
+        service = null;
+    }
+
+    /**
+     * Called when the Market billing service failed while in use; the next
+     * request will bind again.
+     */
+    void onServiceFailed() {
+        unbind();
+    }
+
+    /**
+     * Starts the idle countdown. Called whenever there is no more work.
+     */
+    void scheduleIdle() {
+        handler.removeCallbacks(idleRunnable);
+        handler.postDelayed(idleRunnable, idleTimeout);
+    }
+
+    void cancelIdle() {
+        handler.removeCallbacks(idleRunnable);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, final IBinder binder) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!bound) {
+                    // Unbound while the connection was in flight
+                    return;
+                }
+                final long latency = SystemClock.elapsedRealtime() - bindTime;
+                recordConnectLatency(latency);
+                Logger.v(LOG_TAG, "Connected in " + latency + "ms");
+                service = IMarketBillingService.Stub.asInterface(binder);
+                callback.onConnected();
+            }
+        });
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The binding stays, Android reconnects once Market restarts
+                bindTime = SystemClock.elapsedRealtime();
+                service = null;
+            }
+        });
+    }
+}
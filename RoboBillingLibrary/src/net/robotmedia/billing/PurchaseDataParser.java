@@ -0,0 +1,107 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.os.Build;
+import net.robotmedia.billing.model.Transaction;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the signed data of PURCHASE_STATE_CHANGED. The nonce is handed to
+ * the callback first and, if it's rejected, the orders are not parsed at all.
+ * Orders are then handed over in chunks so they can be stored while the rest
+ * of the data is parsed.
+ * <p/>
+ * On Honeycomb and above the data is streamed with {@link PurchaseDataReader},
+ * which never holds more than a chunk of orders in memory. Older versions
+ * build the whole JSON tree.
+ * <p/>
+ * Neither path has a unit test yet. org.json, JsonReader and Build.VERSION
+ * are stubs in the android.jar the tests run against, so comparing the two
+ * needs a device or Robolectric.
+ */
+class PurchaseDataParser {
+    static final String JSON_NONCE = "nonce";
+    static final String JSON_ORDERS = "orders";
+    static final int DEFAULT_CHUNK_SIZE = 100;
+
+    interface Callback {
+        /**
+         * Called once with the nonce of the data, or zero if it has none.
+         *
+         * @return true if the nonce is valid and the orders should be parsed.
+         */
+        boolean onNonce(long nonce);
+
+        /**
+         * Called with the next chunk of orders, only after the nonce was
+         * accepted.
+         */
+        void onTransactions(List<Transaction> transactions);
+    }
+
+    /**
+     * Parses the signed data.
+     *
+     * @param signedData signed JSON data received from the Market Billing service.
+     * @param callback   receives the nonce and the orders.
+     * @param chunkSize  maximum number of orders handed over at once.
+     * @return false if the nonce was rejected, true otherwise.
+     * @throws JSONException if the data couldn't be properly parsed.
+     */
+    static boolean parse(String signedData, Callback callback, int chunkSize) throws JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            try {
+                return PurchaseDataReader.read(signedData, callback, chunkSize);
+            } catch (IOException e) {
+                throw new JSONException(e.getMessage());
+            } catch (IllegalStateException e) {
+                // Unexpected token
+                throw new JSONException(e.getMessage());
+            } catch (NumberFormatException e) {
+                throw new JSONException(e.getMessage());
+            }
+        }
+        return parseTree(signedData, callback, chunkSize);
+    }
+
+    private static boolean parseTree(String signedData, Callback callback, int chunkSize) throws JSONException {
+        final JSONObject data = new JSONObject(signedData);
+        if (!callback.onNonce(data.optLong(JSON_NONCE))) {
+            return false;
+        }
+        final JSONArray orders = data.optJSONArray(JSON_ORDERS);
+        final int numTransactions = orders != null ? orders.length() : 0;
+        List<Transaction> chunk = new ArrayList<Transaction>(Math.min(numTransactions, chunkSize));
+        for (int i = 0; i < numTransactions; i++) {
+            chunk.add(Transaction.parse(orders.getJSONObject(i)));
+            if (chunk.size() >= chunkSize) {
+                callback.onTransactions(chunk);
+                chunk = new ArrayList<Transaction>(Math.min(numTransactions - i - 1, chunkSize));
+            }
+        }
+        if (!chunk.isEmpty()) {
+            callback.onTransactions(chunk);
+        }
+        return true;
+    }
+}
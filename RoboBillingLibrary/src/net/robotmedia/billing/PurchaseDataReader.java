@@ -0,0 +1,123 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import net.robotmedia.billing.model.Transaction;
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming counterpart of {@link PurchaseDataParser}, built on
+ * {@link JsonReader}. Only loaded on Honeycomb and above.
+ * <p/>
+ * The nonce usually precedes the orders, in which case an invalid nonce is
+ * rejected before any order is read. Orders that precede the nonce are
+ * buffered until it's been checked.
+ */
+class PurchaseDataReader {
+    private static final String DEVELOPER_PAYLOAD = "developerPayload";
+    private static final String NOTIFICATION_ID = "notificationId";
+    private static final String ORDER_ID = "orderId";
+    private static final String PACKAGE_NAME = "packageName";
+    private static final String PRODUCT_ID = "productId";
+    private static final String PURCHASE_STATE = "purchaseState";
+    private static final String PURCHASE_TIME = "purchaseTime";
+
+    static boolean read(String signedData, PurchaseDataParser.Callback callback, int chunkSize) throws IOException {
+        final JsonReader reader = new JsonReader(new StringReader(signedData));
+        try {
+            boolean nonceRead = false;
+            List<Transaction> chunk = new ArrayList<Transaction>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (PurchaseDataParser.JSON_NONCE.equals(name) && !nonceRead) {
+                    nonceRead = true;
+                    if (!callback.onNonce(reader.nextLong())) {
+                        return false;
+                    }
+                    if (!chunk.isEmpty()) {
+                        callback.onTransactions(chunk);
+                        chunk = new ArrayList<Transaction>();
+                    }
+                } else if (PurchaseDataParser.JSON_ORDERS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        chunk.add(readTransaction(reader));
+                        if (nonceRead && chunk.size() >= chunkSize) {
+                            callback.onTransactions(chunk);
+                            chunk = new ArrayList<Transaction>();
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!nonceRead && !callback.onNonce(0)) {
+                return false;
+            }
+            if (!chunk.isEmpty()) {
+                callback.onTransactions(chunk);
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Transaction readTransaction(JsonReader reader) throws IOException {
+        final Transaction transaction = new Transaction();
+        boolean hasPurchaseTime = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (PURCHASE_STATE.equals(name)) {
+                transaction.purchaseState = PurchaseState.valueOf(reader.nextInt());
+            } else if (PRODUCT_ID.equals(name)) {
+                transaction.productId = reader.nextString();
+            } else if (PACKAGE_NAME.equals(name)) {
+                transaction.packageName = reader.nextString();
+            } else if (PURCHASE_TIME.equals(name)) {
+                transaction.purchaseTime = reader.nextLong();
+                hasPurchaseTime = true;
+            } else if (ORDER_ID.equals(name)) {
+                transaction.orderId = reader.nextString();
+            } else if (NOTIFICATION_ID.equals(name)) {
+                transaction.notificationId = reader.nextString();
+            } else if (DEVELOPER_PAYLOAD.equals(name)) {
+                transaction.developerPayload = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (transaction.purchaseState == null || transaction.productId == null
+                || transaction.packageName == null || !hasPurchaseTime) {
+            throw new IOException("Order is missing required fields");
+        }
+        return transaction;
+    }
+}
@@ -0,0 +1,141 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.os.RemoteException;
+import com.android.vending.billing.IMarketBillingService;
+import com.ensolabs.robobilling.logging.Logger;
+
+import java.util.LinkedList;
+
+/**
+ * Billing requests waiting for the Market billing service, run in order once
+ * it's connected. Owned by the {@link BillingService} worker thread, like the
+ * connection it runs them on.
+ */
+class RequestQueue {
+
+    /**
+     * Receives the outcome of the queued requests.
+     */
+    interface Callback {
+        /**
+         * Called once a request was sent, or with
+         * {@link BillingRequest#IGNORE_REQUEST_ID} if it couldn't be.
+         */
+        void onRequestSent(long requestId, BillingRequest request);
+
+        /**
+         * Called when the Market billing service failed while running a
+         * request. The request stays queued.
+         */
+        void onRemoteException(RemoteException e);
+
+        /**
+         * Called when the Market billing service can't be bound. The queued
+         * requests have been reported as not sent.
+         */
+        void onBindFailed();
+    }
+
+    private static final String LOG_TAG = "RequestQueue";
+
+    private final LinkedList<BillingRequest> pendingRequests = new LinkedList<BillingRequest>();
+    private final MarketBillingConnection connection;
+    private final Callback callback;
+
+    RequestQueue(MarketBillingConnection connection, Callback callback) {
+        this.connection = connection;
+        this.callback = callback;
+    }
+
+    /**
+     * Binds to the Market billing service ahead of the first request. The
+     * binding is released once idle for the idle timeout, unless requests
+     * come in.
+     */
+    void connect() {
+        if (!connection.bind()) {
+            abort();
+            return;
+        }
+        runPending();
+    }
+
+    /**
+     * Queues the request and runs the queue.
+     */
+    void add(BillingRequest request) {
+        pendingRequests.add(request);
+        runPending();
+    }
+
+    /**
+     * Runs the queued requests, binding to the Market billing service if
+     * needed. Once the queue is drained the binding is kept until it has been
+     * idle for the idle timeout.
+     */
+    void runPending() {
+        BillingRequest request;
+        while ((request = pendingRequests.peek()) != null) {
+            if (runIfConnected(request)) {
+                pendingRequests.remove();
+            } else {
+                if (!connection.bind()) {
+                    abort();
+                }
+                return;
+            }
+        }
+        connection.scheduleIdle();
+    }
+
+    /**
+     * Drops the queued requests when the Market billing service can't be
+     * bound, reporting them as not sent.
+     */
+    private void abort() {
+        BillingRequest request;
+        while ((request = pendingRequests.poll()) != null) {
+            callback.onRequestSent(BillingRequest.IGNORE_REQUEST_ID, request);
+        }
+        callback.onBindFailed();
+    }
+
+    /**
+     * Runs the given billing request if the service is already connected.
+     *
+     * @param request the billing request
+     * @return true if the request ran successfully; false if the service
+     *         is not connected or there was an error when trying to use it
+     */
+    private boolean runIfConnected(BillingRequest request) {
+        final IMarketBillingService service = connection.getService();
+        if (service == null) {
+            return false;
+        }
+        try {
+            Logger.v(LOG_TAG, "Running request...");
+            final long requestId = request.run(service);
+            Logger.v(LOG_TAG, "Request ID " + requestId + " returned");
+            callback.onRequestSent(requestId, request);
+            return true;
+        } catch (RemoteException e) {
+            callback.onRemoteException(e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,89 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import net.robotmedia.billing.BillingRequest.ResponseCode;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe registry of the requests waiting for their RESPONSE_CODE,
+ * keyed by request id.
+ * <p/>
+ * Requests are sent from the {@link BillingService} worker while responses
+ * are handled by the {@link BillingReceiver}, so a response may be handled
+ * before its request was registered. Such early responses are kept until the
+ * request registers. Either way each request gets its response exactly once.
+ *
+ * @param <R> type of the requests, {@link BillingRequest} outside of tests.
+ */
+class RequestRegistry<R> {
+    // Responses for ids never registered (e.g. sent by a previous process) are dropped past this
+    private static final int MAX_EARLY_RESPONSES = 64;
+
+    private final ConcurrentHashMap<Long, R> pendingRequests = new ConcurrentHashMap<Long, R>();
+    private final ConcurrentHashMap<Long, ResponseCode> earlyResponses = new ConcurrentHashMap<Long, ResponseCode>();
+
+    /**
+     * Registers a sent request.
+     *
+     * @param requestId id returned by the Market billing service.
+     * @param request   the request.
+     * @return the response if it already arrived, in which case the request is
+     *         not kept and the caller must deliver the response; null otherwise.
+     */
+    ResponseCode register(long requestId, R request) {
+        pendingRequests.put(requestId, request);
+        final ResponseCode response = earlyResponses.remove(requestId);
+        if (response != null && pendingRequests.remove(requestId, request)) {
+            return response;
+        }
+        return null;
+    }
+
+    /**
+     * Takes the request the response belongs to.
+     *
+     * @param requestId id of the request.
+     * @param response  the response.
+     * @return the request the response must be delivered to, or null if the
+     *         request isn't registered yet, in which case the response is kept.
+     */
+    R complete(long requestId, ResponseCode response) {
+        R request = pendingRequests.remove(requestId);
+        if (request != null) {
+            return request;
+        }
+        if (earlyResponses.size() >= MAX_EARLY_RESPONSES) {
+            earlyResponses.clear();
+        }
+        earlyResponses.put(requestId, response);
+        // The request may have registered in the meantime
+        request = pendingRequests.remove(requestId);
+        if (request != null) {
+            earlyResponses.remove(requestId);
+        }
+        return request;
+    }
+
+    /**
+     * @return true if no request waits for its response and no response waits
+     *         for its request.
+     */
+    boolean isEmpty() {
+        return pendingRequests.isEmpty() && earlyResponses.isEmpty();
+    }
+}
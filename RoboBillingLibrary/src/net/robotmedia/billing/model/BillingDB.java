@@ -21,48 +21,248 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import net.robotmedia.billing.utils.Compatibility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class BillingDB {
     static final String DATABASE_NAME = "billing.db";
-    static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 4;
     static final String TABLE_TRANSACTIONS = "purchases";
+    static final String TABLE_CONFIRMATIONS = "confirmations";
+    static final String INDEX_PRODUCT_STATE = "purchases_product_state";
+    static final String INDEX_PURCHASE_TIME = "purchases_purchase_time";
+    static final String INDEX_PRODUCT_KEY_STATE = "purchases_product_key_state";
 
     public static final String COLUMN__ID = "_id";
     public static final String COLUMN_STATE = "state";
     public static final String COLUMN_PRODUCT_ID = "productId";
     public static final String COLUMN_PURCHASE_TIME = "purchaseTime";
     public static final String COLUMN_DEVELOPER_PAYLOAD = "developerPayload";
+    public static final String COLUMN_PRODUCT_KEY = "productKey";
+    public static final String COLUMN_NOTIFICATION_ID = "notificationId";
+    public static final String COLUMN_QUEUED_TIME = "queuedTime";
 
     private static final String[] TABLE_TRANSACTIONS_COLUMNS = {
             COLUMN__ID, COLUMN_PRODUCT_ID, COLUMN_STATE,
             COLUMN_PURCHASE_TIME, COLUMN_DEVELOPER_PAYLOAD
     };
 
+    static final String COLUMN_ROWID = "rowid";
+    static final int COLUMN_INDEX_PAGE_ROWID = TABLE_TRANSACTIONS_COLUMNS.length;
+    private static final String[] TABLE_TRANSACTIONS_PAGE_COLUMNS = {
+            COLUMN__ID, COLUMN_PRODUCT_ID, COLUMN_STATE,
+            COLUMN_PURCHASE_TIME, COLUMN_DEVELOPER_PAYLOAD, COLUMN_ROWID
+    };
+
+    private static final String INSERT_TRANSACTION = "INSERT OR REPLACE INTO " + TABLE_TRANSACTIONS + "(" +
+            COLUMN__ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_STATE + ", " +
+            COLUMN_PURCHASE_TIME + ", " + COLUMN_DEVELOPER_PAYLOAD + ", " + COLUMN_PRODUCT_KEY +
+            ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String DELETE_TRANSACTIONS_BY_KEY = "DELETE FROM " + TABLE_TRANSACTIONS +
+            " WHERE " + COLUMN_PRODUCT_KEY + " = ?";
+
+    private static final String COUNT_TRANSACTIONS_BY_KEY = "SELECT COUNT(*) FROM " + TABLE_TRANSACTIONS +
+            " WHERE " + COLUMN_PRODUCT_KEY + " = ? AND " + COLUMN_STATE + " = ?";
+
+    private static BillingDB sInstance;
+    private static StorageOptions sStorageOptions = new StorageOptions();
+
     SQLiteDatabase mDb;
     private DatabaseHelper mDatabaseHelper;
+    // Compiled once and reused, guarded by this
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mDeleteByKeyStatement;
+    private SQLiteStatement mCountByKeyStatement;
+    private boolean mWriteAheadLogging;
+    private int mCheckpointInterval;
+    private int mWritesSinceCheckpoint;
 
     public BillingDB(Context context) {
+        this(context, getStorageOptions());
+    }
+
+    public BillingDB(Context context, StorageOptions options) {
         mDatabaseHelper = new DatabaseHelper(context);
         mDb = mDatabaseHelper.getWritableDatabase();
+        applyStorageOptions(options);
+    }
+
+    /**
+     * Sets the storage options used when the process-wide database is opened.
+     * An already open database keeps its options until it's reopened.
+     *
+     * @param options storage options.
+     */
+    public static synchronized void setStorageOptions(StorageOptions options) {
+        sStorageOptions = options != null ? options : new StorageOptions();
+    }
+
+    private static synchronized StorageOptions getStorageOptions() {
+        return sStorageOptions;
+    }
+
+    private void applyStorageOptions(StorageOptions options) {
+        if (options.isWriteAheadLogging()) {
+            mWriteAheadLogging = Compatibility.enableWriteAheadLogging(mDb);
+        }
+        StorageOptions.Synchronous synchronous = options.getSynchronous();
+        if (synchronous == null && mWriteAheadLogging) {
+            // Only safe once the write-ahead log is actually on
+            synchronous = StorageOptions.Synchronous.NORMAL;
+        }
+        if (synchronous != null) {
+            mDb.execSQL("PRAGMA synchronous = " + synchronous.name());
+        }
+        mCheckpointInterval = options.getCheckpointInterval();
+    }
+
+    /**
+     * Counts a write batch and, every checkpoint interval, copies the
+     * write-ahead log back into the database without blocking readers or
+     * writers. Does nothing without write-ahead logging.
+     */
+    public synchronized void onWritesCommitted() {
+        if (!mWriteAheadLogging || mCheckpointInterval <= 0 || ++mWritesSinceCheckpoint < mCheckpointInterval) {
+            return;
+        }
+        mWritesSinceCheckpoint = 0;
+        final Cursor c = mDb.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        if (c != null) {
+            c.moveToFirst();
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the process-wide database, opening it on first use. The
+     * connection is kept open until {@link #closeInstance()} is called, so
+     * callers must not close the returned instance themselves.
+     *
+     * @param context any context, only its application context is retained.
+     * @return the shared database.
+     */
+    public static synchronized BillingDB getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BillingDB(context.getApplicationContext(), sStorageOptions);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Closes the process-wide database if it is open. A later call to
+     * {@link #getInstance(Context)} reopens it.
+     */
+    public static synchronized void closeInstance() {
+        if (sInstance != null) {
+            sInstance.close();
+            sInstance = null;
+        }
     }
 
-    public void close() {
+    public synchronized void close() {
+        closeStatement(mInsertStatement);
+        closeStatement(mDeleteByKeyStatement);
+        closeStatement(mCountByKeyStatement);
+        mInsertStatement = null;
+        mDeleteByKeyStatement = null;
+        mCountByKeyStatement = null;
         mDatabaseHelper.close();
     }
 
-    public void insert(Transaction transaction) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN__ID, transaction.orderId);
-        values.put(COLUMN_PRODUCT_ID, transaction.productId);
-        values.put(COLUMN_STATE, transaction.purchaseState.ordinal());
-        values.put(COLUMN_PURCHASE_TIME, transaction.purchaseTime);
-        values.put(COLUMN_DEVELOPER_PAYLOAD, transaction.developerPayload);
-        mDb.replace(TABLE_TRANSACTIONS, null /* nullColumnHack */, values);
+    private static void closeStatement(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    /**
+     * Begins a database transaction that the writes made until
+     * {@link #endTransaction()} join. Transactions can be nested.
+     */
+    public void beginTransaction() {
+        mDb.beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        mDb.endTransaction();
     }
 
-    public void remove(String[] skus) {
-        for (String sku : skus) {
-            mDb.delete(TABLE_TRANSACTIONS, COLUMN_PRODUCT_ID + "=?", new String[]{sku});
+    public synchronized void insert(Transaction transaction) {
+        bindTransaction(getInsertStatement(), transaction).executeInsert();
+    }
+
+    /**
+     * Inserts or replaces all the given transactions in a single database
+     * transaction, reusing one compiled insert statement.
+     *
+     * @param transactions transactions to store.
+     */
+    public synchronized void insert(List<Transaction> transactions) {
+        final SQLiteStatement statement = getInsertStatement();
+        mDb.beginTransaction();
+        try {
+            for (Transaction transaction : transactions) {
+                bindTransaction(statement, transaction).executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private SQLiteStatement getInsertStatement() {
+        if (mInsertStatement == null) {
+            mInsertStatement = mDb.compileStatement(INSERT_TRANSACTION);
+        }
+        return mInsertStatement;
+    }
+
+    private static SQLiteStatement bindTransaction(SQLiteStatement statement, Transaction transaction) {
+        bindString(statement, 1, transaction.orderId);
+        bindString(statement, 2, transaction.productId);
+        statement.bindLong(3, transaction.purchaseState.ordinal());
+        statement.bindLong(4, transaction.purchaseTime);
+        bindString(statement, 5, transaction.developerPayload);
+        bindString(statement, 6, transaction.productKey);
+        return statement;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Removes all transactions of the given products.
+     *
+     * @param productKeys lookup keys of the products.
+     */
+    public synchronized void removeByKeys(String[] productKeys) {
+        if (mDeleteByKeyStatement == null) {
+            mDeleteByKeyStatement = mDb.compileStatement(DELETE_TRANSACTIONS_BY_KEY);
+        }
+        final SQLiteStatement statement = mDeleteByKeyStatement;
+        mDb.beginTransaction();
+        try {
+            for (String productKey : productKeys) {
+                bindString(statement, 1, productKey);
+                statement.execute();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
     }
 
@@ -81,6 +281,203 @@ public class BillingDB {
                 new String[]{productId, String.valueOf(state.ordinal())}, null, null, null);
     }
 
+    /**
+     * Returns the transactions purchased in the given time range, in purchase
+     * time order.
+     */
+    public Cursor queryTransactions(long fromTime, long toTime) {
+        return mDb.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS,
+                COLUMN_PURCHASE_TIME + " >= ? AND " + COLUMN_PURCHASE_TIME + " < ?",
+                new String[]{String.valueOf(fromTime), String.valueOf(toTime)}, null, null,
+                COLUMN_PURCHASE_TIME + ", " + COLUMN_ROWID);
+    }
+
+    /**
+     * Returns a page of transactions ordered by purchase time, then row id.
+     * Pages are located through the purchase time index rather than skipped
+     * over with an offset, so every page is as cheap as the first.
+     *
+     * @param afterTime  purchase time of the last transaction of the previous page.
+     * @param afterRowId row id of the last transaction of the previous page, or
+     *                   -1 for the first page.
+     * @param limit      maximum number of transactions.
+     * @return cursor with the transaction columns followed by the row id.
+     */
+    public Cursor queryTransactionsPage(long afterTime, long afterRowId, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (afterRowId >= 0) {
+            selection = COLUMN_PURCHASE_TIME + " >= ? AND (" + COLUMN_PURCHASE_TIME + " > ? OR " + COLUMN_ROWID + " > ?)";
+            final String time = String.valueOf(afterTime);
+            selectionArgs = new String[]{time, time, String.valueOf(afterRowId)};
+        }
+        return mDb.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_PAGE_COLUMNS, selection, selectionArgs, null, null,
+                COLUMN_PURCHASE_TIME + ", " + COLUMN_ROWID, String.valueOf(limit));
+    }
+
+    public Cursor queryTransactionsByKey(String productKey) {
+        return mDb.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS, COLUMN_PRODUCT_KEY + " = ?",
+                new String[]{productKey}, null, null, null);
+    }
+
+    /**
+     * Counts the transactions of a product in the given state, without
+     * reading any row.
+     *
+     * @param productKey lookup key of the product.
+     * @param state      purchase state.
+     * @return number of transactions.
+     */
+    public synchronized int countTransactionsByKey(String productKey, PurchaseState state) {
+        if (mCountByKeyStatement == null) {
+            mCountByKeyStatement = mDb.compileStatement(COUNT_TRANSACTIONS_BY_KEY);
+        }
+        final SQLiteStatement statement = mCountByKeyStatement;
+        bindString(statement, 1, productKey);
+        statement.bindLong(2, state.ordinal());
+        return (int) statement.simpleQueryForLong();
+    }
+
+    public Cursor queryTransactionsByKey(String productKey, PurchaseState state) {
+        return mDb.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS, COLUMN_PRODUCT_KEY + " = ? AND " + COLUMN_STATE + " = ?",
+                new String[]{productKey, String.valueOf(state.ordinal())}, null, null, null);
+    }
+
+    /**
+     * Counts purchased transactions grouped by product key.
+     *
+     * @return cursor with the product key in column 0 and its count in column 1.
+     */
+    public Cursor queryPurchaseCounts() {
+        return mDb.query(TABLE_TRANSACTIONS, new String[]{COLUMN_PRODUCT_KEY, "COUNT(*)"},
+                COLUMN_STATE + " = ?", new String[]{String.valueOf(PurchaseState.PURCHASED.ordinal())},
+                COLUMN_PRODUCT_KEY, null, null);
+    }
+
+    /**
+     * Returns the transactions stored before product keys were introduced.
+     *
+     * @return cursor with the order id in column 0 and the product id in column 1.
+     */
+    public Cursor queryTransactionsWithoutKey() {
+        return mDb.query(TABLE_TRANSACTIONS, new String[]{COLUMN__ID, COLUMN_PRODUCT_ID},
+                COLUMN_PRODUCT_KEY + " IS NULL", null, null, null, null);
+    }
+
+    /**
+     * Returns the transactions of the given product stored before product keys
+     * were introduced.
+     *
+     * @param productId product id as stored.
+     */
+    public Cursor queryTransactionsWithoutKey(String productId) {
+        return mDb.query(TABLE_TRANSACTIONS, TABLE_TRANSACTIONS_COLUMNS,
+                COLUMN_PRODUCT_KEY + " IS NULL AND " + COLUMN_PRODUCT_ID + " = ?",
+                new String[]{productId}, null, null, null);
+    }
+
+    /**
+     * Counts purchased transactions without product key grouped by product id.
+     *
+     * @return cursor with the product id in column 0 and its count in column 1.
+     */
+    public Cursor queryPurchaseCountsWithoutKey() {
+        return mDb.query(TABLE_TRANSACTIONS, new String[]{COLUMN_PRODUCT_ID, "COUNT(*)"},
+                COLUMN_PRODUCT_KEY + " IS NULL AND " + COLUMN_STATE + " = ?",
+                new String[]{String.valueOf(PurchaseState.PURCHASED.ordinal())},
+                COLUMN_PRODUCT_ID, null, null);
+    }
+
+    /**
+     * Removes the transactions of the given products stored before product
+     * keys were introduced.
+     *
+     * @param productIds product ids as stored.
+     */
+    public synchronized void removeWithoutKey(String[] productIds) {
+        mDb.beginTransaction();
+        try {
+            for (String productId : productIds) {
+                mDb.delete(TABLE_TRANSACTIONS, COLUMN_PRODUCT_KEY + " IS NULL AND " + COLUMN_PRODUCT_ID + " = ?",
+                        new String[]{productId});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Sets the product key of the given transactions.
+     *
+     * @param productKeys product keys by order id.
+     */
+    public void updateProductKeys(Map<String, String> productKeys) {
+        mDb.beginTransaction();
+        try {
+            final ContentValues values = new ContentValues();
+            for (Map.Entry<String, String> entry : productKeys.entrySet()) {
+                values.put(COLUMN_PRODUCT_KEY, entry.getValue());
+                mDb.update(TABLE_TRANSACTIONS, values, COLUMN__ID + " = ?", new String[]{entry.getKey()});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Adds the given notifications to the confirmation outbox, ignoring those
+     * already there.
+     *
+     * @param notifyIds ids of the notifications pending confirmation.
+     */
+    public void insertConfirmations(String[] notifyIds) {
+        final long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            for (String notifyId : notifyIds) {
+                mDb.execSQL("INSERT OR IGNORE INTO " + TABLE_CONFIRMATIONS + "(" +
+                        COLUMN_NOTIFICATION_ID + ", " + COLUMN_QUEUED_TIME + ") VALUES (?, ?)",
+                        new Object[]{notifyId, now});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    public void removeConfirmations(String[] notifyIds) {
+        mDb.beginTransaction();
+        try {
+            for (String notifyId : notifyIds) {
+                mDb.delete(TABLE_CONFIRMATIONS, COLUMN_NOTIFICATION_ID + " = ?", new String[]{notifyId});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the ids of all notifications in the confirmation outbox, oldest
+     * first.
+     *
+     * @return list of notification ids.
+     */
+    public List<String> queryConfirmations() {
+        final List<String> notifyIds = new ArrayList<String>();
+        final Cursor c = mDb.query(TABLE_CONFIRMATIONS, new String[]{COLUMN_NOTIFICATION_ID},
+                null, null, null, null, COLUMN_QUEUED_TIME);
+        if (c != null) {
+            while (c.moveToNext()) {
+                notifyIds.add(c.getString(0));
+            }
+            c.close();
+        }
+        return notifyIds;
+    }
+
     protected static final Transaction createTransaction(Cursor cursor) {
         final Transaction purchase = new Transaction();
         purchase.orderId = cursor.getString(0);
@@ -99,19 +496,84 @@ public class BillingDB {
         @Override
         public void onCreate(SQLiteDatabase db) {
             createTransactionsTable(db);
+            createTransactionsIndexes(db);
+            createConfirmationsTable(db);
         }
 
         private void createTransactionsTable(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_TRANSACTIONS + "(" +
                     COLUMN__ID + " TEXT PRIMARY KEY, " +
-                    COLUMN_PRODUCT_ID + " INTEGER, " +
-                    COLUMN_STATE + " TEXT, " +
-                    COLUMN_PURCHASE_TIME + " TEXT, " +
-                    COLUMN_DEVELOPER_PAYLOAD + " INTEGER)");
+                    COLUMN_PRODUCT_ID + " TEXT, " +
+                    COLUMN_STATE + " INTEGER, " +
+                    COLUMN_PURCHASE_TIME + " INTEGER, " +
+                    COLUMN_DEVELOPER_PAYLOAD + " TEXT, " +
+                    COLUMN_PRODUCT_KEY + " TEXT)");
+        }
+
+        private void createTransactionsIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + INDEX_PRODUCT_STATE + " ON " + TABLE_TRANSACTIONS +
+                    "(" + COLUMN_PRODUCT_ID + ", " + COLUMN_STATE + ")");
+            db.execSQL("CREATE INDEX " + INDEX_PURCHASE_TIME + " ON " + TABLE_TRANSACTIONS +
+                    "(" + COLUMN_PURCHASE_TIME + ")");
+            createProductKeyIndex(db);
+        }
+
+        private void createProductKeyIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + INDEX_PRODUCT_KEY_STATE + " ON " + TABLE_TRANSACTIONS +
+                    "(" + COLUMN_PRODUCT_KEY + ", " + COLUMN_STATE + ")");
         }
 
+        private void createConfirmationsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CONFIRMATIONS + "(" +
+                    COLUMN_NOTIFICATION_ID + " TEXT PRIMARY KEY, " +
+                    COLUMN_QUEUED_TIME + " INTEGER)");
+        }
+
+        /**
+         * SQLiteOpenHelper runs this inside a single transaction, so a failed
+         * migration leaves the previous schema untouched.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                // Rebuilds the table with the current schema, product key included
+                upgradeToVersion2(db);
+            } else if (oldVersion < 4) {
+                // Keys can't be computed without the salt, they're filled in by the controller
+                db.execSQL("ALTER TABLE " + TABLE_TRANSACTIONS + " ADD COLUMN " + COLUMN_PRODUCT_KEY + " TEXT");
+                createProductKeyIndex(db);
+            }
+            if (oldVersion < 3) {
+                createConfirmationsTable(db);
+            }
+        }
+
+        /**
+         * Version 1 declared the product id and payload as INTEGER and the state
+         * and purchase time as TEXT, the reverse of what is stored, and had no
+         * indexes. The table is rebuilt with the right affinities and indexed.
+         * Values version 1 already coerced, such as product ids that looked
+         * numeric, can't be restored; the casts only fix their storage class.
+         * <p/>
+         * Not covered by the unit tests: they run on the JVM against the
+         * android.jar stubs, where SQLiteDatabase throws, and the build has
+         * neither Robolectric nor an instrumentation project to run it on.
+         */
+        private void upgradeToVersion2(SQLiteDatabase db) {
+            final String oldTable = TABLE_TRANSACTIONS + "_v1";
+            db.execSQL("ALTER TABLE " + TABLE_TRANSACTIONS + " RENAME TO " + oldTable);
+            createTransactionsTable(db);
+            db.execSQL("INSERT INTO " + TABLE_TRANSACTIONS + "(" +
+                    COLUMN__ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_STATE + ", " +
+                    COLUMN_PURCHASE_TIME + ", " + COLUMN_DEVELOPER_PAYLOAD + ") SELECT " +
+                    COLUMN__ID + ", " +
+                    "CAST(" + COLUMN_PRODUCT_ID + " AS TEXT), " +
+                    "CAST(" + COLUMN_STATE + " AS INTEGER), " +
+                    "CAST(" + COLUMN_PURCHASE_TIME + " AS INTEGER), " +
+                    "CAST(" + COLUMN_DEVELOPER_PAYLOAD + " AS TEXT) FROM " + oldTable);
+            db.execSQL("DROP TABLE " + oldTable);
+            // Indexing after the copy is cheaper than maintaining them row by row
+            createTransactionsIndexes(db);
         }
     }
 }
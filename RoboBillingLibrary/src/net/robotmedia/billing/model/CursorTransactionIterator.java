@@ -0,0 +1,70 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.database.Cursor;
+
+/**
+ * Reads the transactions of a {@link BillingDB} one page at a time, so that
+ * only a page of rows is held in memory however long the history is.
+ */
+class CursorTransactionIterator extends TransactionIterator {
+    static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final BillingDB db;
+    private final int pageSize;
+    private Cursor page;
+    private long lastTime;
+    private long lastRowId = -1;
+    private boolean lastPage;
+
+    CursorTransactionIterator(BillingDB db, Decoder decoder, int pageSize) {
+        super(decoder);
+        this.db = db;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    protected Transaction readNext() {
+        while (true) {
+            if (page == null) {
+                if (lastPage) {
+                    return null;
+                }
+                page = db.queryTransactionsPage(lastTime, lastRowId, pageSize);
+                if (page == null) {
+                    return null;
+                }
+            }
+            if (page.moveToNext()) {
+                final Transaction transaction = BillingDB.createTransaction(page);
+                lastTime = transaction.purchaseTime;
+                lastRowId = page.getLong(BillingDB.COLUMN_INDEX_PAGE_ROWID);
+                return transaction;
+            }
+            lastPage = page.getCount() < pageSize;
+            release();
+        }
+    }
+
+    @Override
+    protected void release() {
+        if (page != null) {
+            page.close();
+            page = null;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of the number of purchased transactions per product key.
+ * It is loaded once from the {@link TransactionStore} and then kept current by the
+ * {@link TransactionManager} write methods, so lookups never touch disk.
+ * <p/>
+ * Writes are tracked as soon as they're queued, in order and by order id, so
+ * that the last write of an order wins. Until they're stored, a product's count
+ * is known only if none of its stored purchases can be affected: it has none,
+ * or a queued removal precedes the queued inserts. Otherwise {@link #count(String)}
+ * can't tell. Once stored, the exact count is read back.
+ */
+class EntitlementCache {
+    // Counts of the stored transactions
+    private final Map<String, Integer> purchaseCounts = new HashMap<String, Integer>();
+    // Purchases stored before product keys, by stored product id, until they're backfilled
+    private final Map<String, Integer> countsWithoutKey = new HashMap<String, Integer>();
+    // Queued writes not stored yet, in queue order, by product key
+    private final Map<String, List<PendingWrite>> pendingWrites = new HashMap<String, List<PendingWrite>>();
+    private final Map<String, Integer> pendingRemovalsWithoutKey = new HashMap<String, Integer>();
+    private volatile boolean loaded = false;
+
+    /**
+     * A queued insert of an order, or removal of a product.
+     */
+    private static final class PendingWrite {
+        // List or array queued with the write, identifies it once stored
+        final Object write;
+        // Null for removals
+        final Transaction transaction;
+
+        PendingWrite(Object write, Transaction transaction) {
+            this.write = write;
+            this.transaction = transaction;
+        }
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Loads the counts from the store. The store is read before the cache is
+     * locked, so lookups aren't held up by the query.
+     */
+    void load(TransactionStore store) {
+        load(store, null);
+    }
+
+    /**
+     * Loads the counts from the store, and drops the given writes, now
+     * stored, from the queued ones.
+     *
+     * @param store  store.
+     * @param writes stored writes, may be null.
+     */
+    void load(TransactionStore store, List<TransactionWriter.Write> writes) {
+        final Map<String, Integer> counts = store.countPurchases();
+        final Map<String, Integer> legacyCounts = store.countPurchasesWithoutKey();
+        synchronized (this) {
+            if (writes != null) {
+                removePending(writes);
+            }
+            purchaseCounts.clear();
+            purchaseCounts.putAll(counts);
+            countsWithoutKey.clear();
+            countsWithoutKey.putAll(legacyCounts);
+            loaded = true;
+        }
+    }
+
+    /**
+     * Empties the cache, it has to be loaded again. Queued writes are kept.
+     */
+    synchronized void clear() {
+        loaded = false;
+        purchaseCounts.clear();
+        countsWithoutKey.clear();
+    }
+
+    /**
+     * @return true if there are purchases stored without product key.
+     */
+    synchronized boolean hasPurchasesWithoutKey() {
+        return !countsWithoutKey.isEmpty();
+    }
+
+    /**
+     * @param productId product id as stored.
+     * @return number of purchases of the product stored without product key.
+     */
+    synchronized int countWithoutKey(String productId) {
+        if (productId == null || get(pendingRemovalsWithoutKey, productId) > 0) {
+            return 0;
+        }
+        return get(countsWithoutKey, productId);
+    }
+
+    /**
+     * @return number of purchases of the product, or -1 if it depends on
+     *         whether queued writes replace stored purchases.
+     */
+    synchronized int count(String productKey) {
+        if (productKey == null) {
+            return 0;
+        }
+        final int stored = get(purchaseCounts, productKey);
+        final List<PendingWrite> writes = pendingWrites.get(productKey);
+        if (writes == null) {
+            return stored;
+        }
+        boolean removed = false;
+        final Map<Object, PurchaseState> states = new HashMap<Object, PurchaseState>();
+        for (PendingWrite write : writes) {
+            if (write.transaction == null) {
+                removed = true;
+                states.clear();
+            } else {
+                final Transaction transaction = write.transaction;
+                states.put(transaction.orderId != null ? transaction.orderId : write, transaction.purchaseState);
+            }
+        }
+        if (!removed && stored > 0 && !states.isEmpty()) {
+            return -1;
+        }
+        int count = removed ? 0 : stored;
+        for (PurchaseState state : states.values()) {
+            if (state == PurchaseState.PURCHASED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #count(String)}, but when the queued writes can't be
+     * resolved it returns the stored count instead.
+     */
+    synchronized int countStoredIfUnknown(String productKey) {
+        final int count = count(productKey);
+        return count >= 0 ? count : get(purchaseCounts, productKey);
+    }
+
+    /**
+     * @return true if writes of the given product are queued.
+     */
+    synchronized boolean isPending(String productKey) {
+        return pendingWrites.containsKey(productKey);
+    }
+
+    /**
+     * @return copy of the number of stored purchases by product key.
+     */
+    synchronized Map<String, Integer> getCounts() {
+        return new HashMap<String, Integer>(purchaseCounts);
+    }
+
+    /**
+     * Tracks a queued insert. Must be called before the write is queued, with
+     * the list queued.
+     */
+    synchronized void queueInsert(List<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            if (transaction.productKey != null) {
+                pending(transaction.productKey).add(new PendingWrite(transactions, transaction));
+            }
+        }
+    }
+
+    /**
+     * Tracks a queued removal. Must be called before the write is queued, with
+     * the arrays queued.
+     */
+    synchronized void queueRemoval(String[] productKeys, String[] productIdsWithoutKey) {
+        for (String productKey : productKeys) {
+            if (productKey != null) {
+                pending(productKey).add(new PendingWrite(productKeys, null));
+            }
+        }
+        addRemovalsWithoutKey(productIdsWithoutKey, 1);
+    }
+
+    /**
+     * Drops the given writes, now stored, from the queued ones and replaces
+     * the stored counts of the products they changed.
+     *
+     * @param writes stored writes.
+     * @param counts stored number of purchases of the products they changed.
+     */
+    synchronized void written(List<TransactionWriter.Write> writes, Map<String, Integer> counts) {
+        removePending(writes);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            put(purchaseCounts, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private List<PendingWrite> pending(String productKey) {
+        List<PendingWrite> writes = pendingWrites.get(productKey);
+        if (writes == null) {
+            writes = new ArrayList<PendingWrite>(2);
+            pendingWrites.put(productKey, writes);
+        }
+        return writes;
+    }
+
+    private void removePending(List<TransactionWriter.Write> writes) {
+        for (TransactionWriter.Write write : writes) {
+            if (write.transactions != null) {
+                for (Transaction transaction : write.transactions) {
+                    removePending(transaction.productKey, write.transactions, transaction);
+                }
+            } else if (write.productKeys != null) {
+                for (String productKey : write.productKeys) {
+                    removePending(productKey, write.productKeys, null);
+                }
+                addRemovalsWithoutKey(write.productIdsWithoutKey, -1);
+            }
+        }
+    }
+
+    private void removePending(String productKey, Object write, Transaction transaction) {
+        final List<PendingWrite> writes = pendingWrites.get(productKey);
+        if (writes == null) {
+            return;
+        }
+        for (Iterator<PendingWrite> i = writes.iterator(); i.hasNext(); ) {
+            final PendingWrite pending = i.next();
+            if (pending.write == write && pending.transaction == transaction) {
+                i.remove();
+                break;
+            }
+        }
+        if (writes.isEmpty()) {
+            pendingWrites.remove(productKey);
+        }
+    }
+
+    private void addRemovalsWithoutKey(String[] productIds, int sign) {
+        if (productIds != null) {
+            for (String productId : productIds) {
+                if (productId != null) {
+                    put(pendingRemovalsWithoutKey, productId, get(pendingRemovalsWithoutKey, productId) + sign);
+                }
+            }
+        }
+    }
+
+    private static int get(Map<String, Integer> map, String key) {
+        final Integer value = map.get(key);
+        return value == null ? 0 : value;
+    }
+
+    private static void put(Map<String, Integer> map, String key, int value) {
+        if (key == null) {
+            return;
+        }
+        if (value != 0) {
+            map.put(key, value);
+        } else {
+            map.remove(key);
+        }
+    }
+}
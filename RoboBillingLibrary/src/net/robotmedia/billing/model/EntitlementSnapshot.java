@@ -0,0 +1,460 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import com.ensolabs.robobilling.logging.Logger;
+import net.robotmedia.billing.utils.AESObfuscator;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small binary file holding the number of purchases of every product, so that
+ * {@link TransactionManager} can answer purchase checks on cold start with a
+ * single file read, before the database is opened or the obfuscation key is
+ * derived.
+ * <p/>
+ * Counts are stored by product key. Looking up an item id needs the key
+ * product keys are hashed with (see {@link AESObfuscator#getLookupKey()}),
+ * which the file only holds encrypted with the snapshot key. The snapshot key
+ * is an HMAC of a random value stored in the file, keyed with the obfuscation
+ * salt, which isn't; it takes no I/O besides reading the file. The file is
+ * authenticated with it by an HMAC-SHA256 trailer, which also rejects torn or
+ * corrupt files. The file is rewritten atomically: written next to the old
+ * one, synced, then renamed over it, outside the lock lookups may wait for.
+ * <p/>
+ * Without a salt product keys are the item ids, there's no lookup key to
+ * hide and the trailer only detects corruption. The trailer doesn't stop an
+ * older snapshot from being put back in place of the current one.
+ */
+public class EntitlementSnapshot {
+    static final String FILE_NAME = "entitlements.snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String TAG = "EntitlementSnapshot";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String KEY_LABEL = "net.robotmedia.billing.model.EntitlementSnapshot-key";
+    private static final String WRAP_LABEL = "net.robotmedia.billing.model.EntitlementSnapshot-wrap";
+    private static final int MAGIC = 0x52424553;
+    private static final int VERSION = 3;
+    private static final int NONCE_LENGTH = 16;
+    private static final int HEADER_LENGTH = 8 + NONCE_LENGTH;
+    private static final int MAC_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final File file;
+    private final File tempFile;
+    // Held while the file is written, never by lookups
+    private final Object fileLock = new Object();
+    // Replaced as a whole under this object's monitor, read without it
+    private volatile State state = new State();
+    // File read by load(), until the salt opens it
+    private byte[] stored;
+    // Version of the last state persist() handled, guarded by fileLock
+    private long persistedVersion;
+
+    /**
+     * Immutable view of the snapshot, so lookups don't wait for the monitor
+     * held while the snapshot changes.
+     */
+    private static final class State {
+        final long version;
+        // Counts are up to date with the store
+        final boolean current;
+        final Map<String, Integer> counts;
+        // Salt the keys below belong to, once keyKnown
+        final byte[] salt;
+        final boolean keyKnown;
+        // Random input of the snapshot key, stored in the file
+        final byte[] nonce;
+        // Key the file is authenticated with, derived from the salt and nonce
+        final byte[] snapshotKey;
+        // Empty when product keys are the item ids, null until known
+        final byte[] lookupKey;
+        // Hashes item ids, used under its own monitor; null without lookup key
+        final Mac mac;
+        // Differs from the file
+        final boolean dirty;
+        // The file must not outlive this state, even if it can't be rewritten
+        final boolean discarded;
+
+        State() {
+            this(0, false, Collections.<String, Integer>emptyMap(), null, false, null, null, null, null, false, false);
+        }
+
+        private State(long version, boolean current, Map<String, Integer> counts, byte[] salt, boolean keyKnown,
+                      byte[] nonce, byte[] snapshotKey, byte[] lookupKey, Mac mac, boolean dirty, boolean discarded) {
+            this.version = version;
+            this.current = current;
+            this.counts = counts;
+            this.salt = salt;
+            this.keyKnown = keyKnown;
+            this.nonce = nonce;
+            this.snapshotKey = snapshotKey;
+            this.lookupKey = lookupKey;
+            this.mac = mac;
+            this.dirty = dirty;
+            this.discarded = discarded;
+        }
+
+        boolean matches(byte[] salt) {
+            return keyKnown && Arrays.equals(salt, this.salt);
+        }
+
+        State withCounts(boolean current, Map<String, Integer> counts, boolean dirty, boolean discarded) {
+            return new State(version + 1, current, Collections.unmodifiableMap(counts), salt, keyKnown, nonce,
+                    snapshotKey, lookupKey, mac, dirty, discarded);
+        }
+
+        State withKeys(byte[] salt, byte[] nonce, byte[] snapshotKey, byte[] lookupKey, boolean dirty) {
+            final Mac mac = lookupKey.length > 0 ? AESObfuscator.newLookupMac(lookupKey) : null;
+            return new State(version + 1, current, counts, salt, true, nonce, snapshotKey, lookupKey, mac, dirty,
+                    discarded);
+        }
+    }
+
+    public EntitlementSnapshot(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    public EntitlementSnapshot(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Reads the snapshot file. It's authenticated and decoded on first lookup,
+     * once the salt is known.
+     *
+     * @return true if a snapshot was read.
+     */
+    public synchronized boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            final byte[] data = readFile();
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (data.length < HEADER_LENGTH + MAC_LENGTH || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            stored = data;
+            return true;
+        } catch (IOException e) {
+            Logger.w(TAG, "Ignoring invalid entitlement snapshot: " + e.getMessage());
+            file.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the product key of the given item, without deriving the
+     * obfuscation key.
+     *
+     * @param salt   obfuscation salt, null if product keys are the item ids.
+     * @param itemId item id.
+     * @return product key, or null if the snapshot can't tell.
+     */
+    public String getProductKey(byte[] salt, String itemId) {
+        if (itemId == null) {
+            return null;
+        }
+        State s = state;
+        if (!s.matches(salt)) {
+            synchronized (this) {
+                if (!state.matches(salt)) {
+                    open(salt);
+                }
+                s = state;
+            }
+            persist();
+            if (!s.matches(salt)) {
+                return null;
+            }
+        }
+        if (!s.current) {
+            return null;
+        }
+        if (s.mac == null) {
+            return itemId;
+        }
+        synchronized (s.mac) {
+            return AESObfuscator.hash(s.mac, itemId);
+        }
+    }
+
+    /**
+     * Returns the number of purchases of the given product, without touching
+     * the database.
+     *
+     * @param productKey product key, see {@link #getProductKey(byte[], String)}.
+     * @return number of purchases, or -1 if the snapshot can't tell.
+     */
+    public int count(String productKey) {
+        final State s = state;
+        if (!s.current || productKey == null) {
+            return -1;
+        }
+        final Integer count = s.counts.get(productKey);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Sets the key product keys are hashed with, and rewrites the snapshot if
+     * it changed.
+     *
+     * @param salt obfuscation salt, null if product keys are the item ids.
+     * @param key  lookup key derived from the salt, or null if salt is null.
+     */
+    void setLookupKey(byte[] salt, byte[] key) {
+        final byte[] newKey = key != null ? key.clone() : new byte[0];
+        synchronized (this) {
+            if (!state.matches(salt)) {
+                open(salt);
+            }
+            final State s = state;
+            if (!s.matches(salt) || !Arrays.equals(newKey, s.lookupKey)) {
+                // A file left by another salt is superseded
+                stored = null;
+                byte[] nonce = s.nonce;
+                if (nonce == null) {
+                    nonce = new byte[NONCE_LENGTH];
+                    RANDOM.nextBytes(nonce);
+                }
+                state = s.withKeys(salt != null ? salt.clone() : null, nonce, deriveKey(salt, nonce), newKey, true);
+            }
+        }
+        persist();
+    }
+
+    /**
+     * Replaces the counts with the given ones, and rewrites the snapshot.
+     *
+     * @param purchaseCounts number of purchases by product key.
+     */
+    void update(Map<String, Integer> purchaseCounts) {
+        synchronized (this) {
+            final State s = state;
+            if (s.current && s.counts.equals(purchaseCounts)) {
+                return;
+            }
+            state = s.withCounts(true, new HashMap<String, Integer>(purchaseCounts), true, s.discarded);
+        }
+        persist();
+    }
+
+    /**
+     * Deletes the snapshot; it doesn't answer until it's updated again.
+     */
+    void invalidate() {
+        synchronized (this) {
+            final State s = state;
+            if (!s.current && stored == null) {
+                return;
+            }
+            stored = null;
+            state = s.withCounts(false, Collections.<String, Integer>emptyMap(), true, true);
+        }
+        persist();
+    }
+
+    /**
+     * Authenticates and decodes the file read by {@link #load()} with the key
+     * of the given salt. Counts already updated from the store are kept.
+     * Called with the monitor held.
+     */
+    private void open(byte[] salt) {
+        if (stored == null) {
+            return;
+        }
+        final byte[] storedNonce = new byte[NONCE_LENGTH];
+        System.arraycopy(stored, 8, storedNonce, 0, NONCE_LENGTH);
+        final byte[] key = deriveKey(salt, storedNonce);
+        final Mac fileMac = newMac(key);
+        fileMac.update(stored, 0, stored.length - MAC_LENGTH);
+        final byte[] trailer = new byte[MAC_LENGTH];
+        System.arraycopy(stored, stored.length - MAC_LENGTH, trailer, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(fileMac.doFinal(), trailer)) {
+            // Written with another salt, or tampered with
+            return;
+        }
+        final Map<String, Integer> loaded;
+        final byte[] wrapped;
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored));
+            in.skipBytes(HEADER_LENGTH);
+            wrapped = readBytes(in);
+            final int size = in.readInt();
+            loaded = new HashMap<String, Integer>(size * 2);
+            for (int i = 0; i < size; i++) {
+                final String productKey = in.readUTF();
+                loaded.put(productKey, in.readInt());
+            }
+        } catch (IOException e) {
+            Logger.w(TAG, "Ignoring invalid entitlement snapshot: " + e.getMessage());
+            stored = null;
+            state = state.withCounts(false, Collections.<String, Integer>emptyMap(), true, true);
+            return;
+        }
+        stored = null;
+        final State s = state;
+        final boolean dirty = s.current && !s.counts.equals(loaded);
+        final State opened = s.withKeys(salt != null ? salt.clone() : null, storedNonce, key, wrap(key, wrapped),
+                dirty);
+        state = s.current ? opened : opened.withCounts(true, loaded, false, false);
+    }
+
+    /**
+     * Brings the file up to date with the latest state, unless another thread
+     * already did. The file isn't written while the keys aren't known; a
+     * snapshot without them couldn't answer anything.
+     */
+    private void persist() {
+        synchronized (fileLock) {
+            final State s = state;
+            if (s.version == persistedVersion) {
+                return;
+            }
+            persistedVersion = s.version;
+            if (!s.current || (!s.keyKnown && s.discarded)) {
+                file.delete();
+            } else if (s.keyKnown && s.dirty) {
+                write(s);
+            }
+        }
+    }
+
+    private void write(State s) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(s.nonce);
+            writeBytes(out, wrap(s.snapshotKey, s.lookupKey));
+            out.writeInt(s.counts.size());
+            for (Map.Entry<String, Integer> entry : s.counts.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.write(newMac(s.snapshotKey).doFinal(bytes.toByteArray()));
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+
+        try {
+            final FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                bytes.writeTo(fos);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Failed to write the entitlement snapshot", e);
+            tempFile.delete();
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readUnsignedShort();
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * XORs the lookup key with a pad derived from the snapshot key; the same
+     * call unwraps it.
+     */
+    private static byte[] wrap(byte[] snapshotKey, byte[] key) {
+        final byte[] result = key.clone();
+        if (result.length == 0) {
+            return result;
+        }
+        try {
+            final byte[] pad = newMac(snapshotKey).doFinal(WRAP_LABEL.getBytes("UTF-8"));
+            for (int i = 0; i < result.length; i++) {
+                result[i] ^= pad[i % pad.length];
+            }
+            return result;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Derives the snapshot key. Keyed with the salt, which isn't stored, so
+     * the file alone doesn't reveal it.
+     */
+    private static byte[] deriveKey(byte[] salt, byte[] nonce) {
+        try {
+            final byte[] label = KEY_LABEL.getBytes("UTF-8");
+            final Mac kdf = newMac(salt != null && salt.length > 0 ? salt : label);
+            kdf.update(label);
+            return kdf.doFinal(nonce);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    private static Mac newMac(byte[] key) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // This can't happen on a compatible Android device.
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import com.google.inject.Inject;
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link TransactionStore} that keeps transactions, and the confirmation
+ * outbox, in memory only, e.g. for tests or for apps that restore transactions
+ * on every start. Transactions are copied in and out, so callers can't modify
+ * the stored ones.
+ * <p/>
+ * Batches are not atomic: a failed batch keeps the writes made before the
+ * failure.
+ */
+public class HeapTransactionStore implements TransactionStore {
+    // Transactions without order id never replace each other, they get unique keys
+    private static final String NO_ORDER_ID_PREFIX = "\u0000";
+
+    private static final Comparator<Transaction> PURCHASE_TIME_ORDER = new Comparator<Transaction>() {
+        @Override
+        public int compare(Transaction lhs, Transaction rhs) {
+            return lhs.purchaseTime < rhs.purchaseTime ? -1 : (lhs.purchaseTime == rhs.purchaseTime ? 0 : 1);
+        }
+    };
+
+    // Transactions by order id, in insertion order
+    private final LinkedHashMap<String, Transaction> transactions = new LinkedHashMap<String, Transaction>();
+    // Order ids by product key
+    private final HashMap<String, Set<String>> orderIdsByProduct = new HashMap<String, Set<String>>();
+    // Notification ids in the confirmation outbox, oldest first
+    private final LinkedHashSet<String> confirmations = new LinkedHashSet<String>();
+    private long transactionsWithoutOrderId;
+    private boolean open;
+
+    @Inject
+    public HeapTransactionStore() {
+    }
+
+    /**
+     * Called before the first operation after the store was created or reset,
+     * to load the stored transactions.
+     */
+    protected void onOpen() {
+    }
+
+    protected void ensureOpen() {
+        if (!open) {
+            open = true;
+            onOpen();
+        }
+    }
+
+    /**
+     * Forgets all transactions. The next operation opens the store again.
+     */
+    protected synchronized void reset() {
+        transactions.clear();
+        orderIdsByProduct.clear();
+        confirmations.clear();
+        open = false;
+    }
+
+    /**
+     * @return number of stored transactions.
+     */
+    protected synchronized int size() {
+        ensureOpen();
+        return transactions.size();
+    }
+
+    @Override
+    public void beginBatch() {
+    }
+
+    @Override
+    public void endBatch(boolean successful) {
+    }
+
+    @Override
+    public synchronized void insert(Transaction transaction) {
+        ensureOpen();
+        put(transaction);
+    }
+
+    @Override
+    public synchronized void insert(List<Transaction> transactions) {
+        ensureOpen();
+        for (Transaction transaction : transactions) {
+            put(transaction);
+        }
+    }
+
+    private void put(Transaction transaction) {
+        final String orderId = transaction.orderId != null ? transaction.orderId
+                : NO_ORDER_ID_PREFIX + transactionsWithoutOrderId++;
+        final Transaction previous = transactions.remove(orderId);
+        if (previous != null) {
+            unindex(orderId, previous);
+        }
+        final Transaction copy = transaction.clone();
+        transactions.put(orderId, copy);
+        index(orderId, copy);
+    }
+
+    private void index(String orderId, Transaction transaction) {
+        Set<String> orderIds = orderIdsByProduct.get(transaction.productKey);
+        if (orderIds == null) {
+            orderIds = new LinkedHashSet<String>();
+            orderIdsByProduct.put(transaction.productKey, orderIds);
+        }
+        orderIds.add(orderId);
+    }
+
+    private void unindex(String orderId, Transaction transaction) {
+        final Set<String> orderIds = orderIdsByProduct.get(transaction.productKey);
+        if (orderIds != null) {
+            orderIds.remove(orderId);
+            if (orderIds.isEmpty()) {
+                orderIdsByProduct.remove(transaction.productKey);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String[] productKeys) {
+        ensureOpen();
+        for (String productKey : productKeys) {
+            final Set<String> orderIds = orderIdsByProduct.remove(productKey);
+            if (orderIds != null) {
+                for (String orderId : orderIds) {
+                    transactions.remove(orderId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactions() {
+        ensureOpen();
+        return copy(transactions.values());
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactions(String productKey) {
+        ensureOpen();
+        return copy(get(productKey, null));
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactions(String productKey, PurchaseState state) {
+        ensureOpen();
+        return copy(get(productKey, state));
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactions(long fromTime, long toTime) {
+        ensureOpen();
+        final List<Transaction> result = new ArrayList<Transaction>();
+        for (Transaction transaction : transactions.values()) {
+            if (transaction.purchaseTime >= fromTime && transaction.purchaseTime < toTime) {
+                result.add(transaction.clone());
+            }
+        }
+        // Stable, so transactions purchased at the same time keep their insertion order
+        Collections.sort(result, PURCHASE_TIME_ORDER);
+        return result;
+    }
+
+    @Override
+    public synchronized TransactionIterator iterateTransactions(TransactionIterator.Decoder decoder) {
+        ensureOpen();
+        final List<Transaction> result = copy(transactions.values());
+        Collections.sort(result, PURCHASE_TIME_ORDER);
+        return new ListTransactionIterator(result, decoder);
+    }
+
+    @Override
+    public synchronized int countTransactions(String productKey, PurchaseState state) {
+        ensureOpen();
+        return get(productKey, state).size();
+    }
+
+    @Override
+    public synchronized Map<String, Integer> countPurchases() {
+        ensureOpen();
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String productKey : orderIdsByProduct.keySet()) {
+            if (productKey != null) {
+                final int count = get(productKey, PurchaseState.PURCHASED).size();
+                if (count > 0) {
+                    counts.put(productKey, count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactionsWithoutKey() {
+        ensureOpen();
+        return copy(get(null, null));
+    }
+
+    @Override
+    public synchronized List<Transaction> queryTransactionsWithoutKey(String productId) {
+        ensureOpen();
+        final List<Transaction> result = new ArrayList<Transaction>();
+        for (Transaction transaction : get(null, null)) {
+            if (productId.equals(transaction.productId)) {
+                result.add(transaction.clone());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> countPurchasesWithoutKey() {
+        ensureOpen();
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Transaction transaction : get(null, PurchaseState.PURCHASED)) {
+            final Integer count = counts.get(transaction.productId);
+            counts.put(transaction.productId, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized void removeWithoutKey(String[] productIds) {
+        ensureOpen();
+        final Set<String> orderIds = orderIdsByProduct.get(null);
+        if (orderIds == null) {
+            return;
+        }
+        final Set<String> removed = new HashSet<String>(Arrays.asList(productIds));
+        for (Iterator<String> it = orderIds.iterator(); it.hasNext(); ) {
+            final String orderId = it.next();
+            if (removed.contains(transactions.get(orderId).productId)) {
+                transactions.remove(orderId);
+                it.remove();
+            }
+        }
+        if (orderIds.isEmpty()) {
+            orderIdsByProduct.remove(null);
+        }
+    }
+
+    @Override
+    public synchronized void updateProductKeys(Map<String, String> productKeys) {
+        ensureOpen();
+        for (Map.Entry<String, String> entry : productKeys.entrySet()) {
+            final Transaction transaction = transactions.get(entry.getKey());
+            if (transaction != null) {
+                unindex(entry.getKey(), transaction);
+                transaction.productKey = entry.getValue();
+                index(entry.getKey(), transaction);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void insertConfirmations(String[] notifyIds) {
+        ensureOpen();
+        confirmations.addAll(Arrays.asList(notifyIds));
+    }
+
+    @Override
+    public synchronized void removeConfirmations(String[] notifyIds) {
+        ensureOpen();
+        confirmations.removeAll(Arrays.asList(notifyIds));
+    }
+
+    @Override
+    public synchronized List<String> queryConfirmations() {
+        ensureOpen();
+        return new ArrayList<String>(confirmations);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private List<Transaction> get(String productKey, PurchaseState state) {
+        final List<Transaction> result = new ArrayList<Transaction>();
+        final Set<String> orderIds = orderIdsByProduct.get(productKey);
+        if (orderIds != null) {
+            for (String orderId : orderIds) {
+                final Transaction transaction = transactions.get(orderId);
+                if (state == null || transaction.purchaseState == state) {
+                    result.add(transaction);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Transaction> copy(Iterable<Transaction> transactions) {
+        final List<Transaction> copies = new ArrayList<Transaction>();
+        for (Transaction transaction : transactions) {
+            copies.add(transaction.clone());
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,544 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import com.ensolabs.robobilling.logging.Logger;
+import com.google.inject.Inject;
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link TransactionStore} that appends every write to a journal file and
+ * keeps the transactions in memory. The journal is memory-mapped and replayed
+ * when the store is first used.
+ * <p/>
+ * Each record is prefixed with its length and the CRC32 of its contents.
+ * Replay stops at the first record that is cut short or doesn't match its
+ * checksum, and the journal is truncated there, so a crash in the middle of an
+ * append loses that append only.
+ * <p/>
+ * Transactions stored again under the same order id, removed products,
+ * product key updates and confirmed notifications leave superseded records
+ * behind. Once they make up more than half of the journal, it is compacted in
+ * the background into one record per stored transaction, plus one for the
+ * confirmation outbox.
+ * <p/>
+ * Suited to ledgers that mostly grow, such as consumables, where appending is
+ * much cheaper than updating SQLite indexes. Writes are synced to disk at the
+ * end of each batch; if that fails, a {@link StorageException} is thrown and
+ * the records are appended by the next sync. A journal that couldn't be
+ * opened is opened again by the next sync too.
+ */
+public class JournalTransactionStore extends HeapTransactionStore {
+    static final String FILE_NAME = "transactions.journal";
+    private static final String COMPACTION_SUFFIX = ".compact";
+    private static final String TAG = "JournalTransactionStore";
+    private static final String THREAD_NAME = "RoboBilling-compaction";
+
+    private static final byte RECORD_INSERT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_PRODUCT_KEY = 3;
+    private static final byte RECORD_REMOVE_WITHOUT_KEY = 4;
+    private static final byte RECORD_CONFIRMATIONS = 5;
+    private static final byte RECORD_CONFIRMED = 6;
+
+    // Length and CRC32 of the record contents
+    private static final int HEADER_SIZE = 8;
+
+    // Journals smaller than this are never compacted
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final File file;
+    private final File compactionFile;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final RecordWriter pendingWriter = new RecordWriter(new DataOutputStream(pending));
+    private RandomAccessFile journal;
+    private int batchDepth;
+    // Records in the journal, including the superseded ones
+    private int recordCount;
+    private boolean compacting;
+    // Incremented on close, so a compaction of the closed journal is abandoned
+    private int generation;
+
+    @Inject
+    public JournalTransactionStore(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    public JournalTransactionStore(File file) {
+        this.file = file;
+        this.compactionFile = new File(file.getPath() + COMPACTION_SUFFIX);
+    }
+
+    @Override
+    protected void onOpen() {
+        if (!compacting) {
+            // Left behind by a compaction interrupted by a crash
+            compactionFile.delete();
+        }
+        recordCount = 0;
+        try {
+            journal = new RandomAccessFile(file, "rw");
+            final FileChannel channel = journal.getChannel();
+            final long length = channel.size();
+            if (length > 0) {
+                final long valid = replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                if (valid < length) {
+                    Logger.w(TAG, "Discarding " + (length - valid) + " bytes at the end of the journal");
+                    channel.truncate(valid);
+                }
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Failed to read the journal, it's opened again on next sync", e);
+            closeJournal();
+        }
+        if (pending.size() > 0) {
+            // Written while the journal couldn't be opened, not in it yet
+            final int journalRecords = recordCount;
+            replay(ByteBuffer.wrap(pending.toByteArray()));
+            recordCount = journalRecords;
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Applies the records in the buffer up to the first invalid one.
+     *
+     * @return length of the valid records.
+     */
+    private long replay(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        int valid = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                // Torn write at the tail
+                break;
+            }
+            final byte[] record = new byte[length];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                Logger.w(TAG, "Journal record at " + valid + " doesn't match its checksum");
+                break;
+            }
+            try {
+                readRecord(new DataInputStream(new ByteArrayInputStream(record)));
+            } catch (IOException e) {
+                Logger.w(TAG, "Corrupt journal record at " + valid);
+                break;
+            }
+            valid = buffer.position();
+            recordCount++;
+        }
+        return valid;
+    }
+
+    private void readRecord(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case RECORD_INSERT:
+                super.insert(readTransaction(in));
+                break;
+            case RECORD_REMOVE:
+                super.remove(readStrings(in));
+                break;
+            case RECORD_REMOVE_WITHOUT_KEY:
+                super.removeWithoutKey(readStrings(in));
+                break;
+            case RECORD_CONFIRMATIONS:
+                super.insertConfirmations(readStrings(in));
+                break;
+            case RECORD_CONFIRMED:
+                super.removeConfirmations(readStrings(in));
+                break;
+            case RECORD_PRODUCT_KEY:
+                final Map<String, String> productKeysByOrder = new HashMap<String, String>();
+                productKeysByOrder.put(readString(in), readString(in));
+                super.updateProductKeys(productKeysByOrder);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    @Override
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    @Override
+    public synchronized void endBatch(boolean successful) {
+        // Memory was updated even if the batch failed, the journal must match it
+        if (--batchDepth == 0) {
+            sync();
+        }
+    }
+
+    @Override
+    public synchronized void insert(Transaction transaction) {
+        super.insert(transaction);
+        try {
+            pendingWriter.writeInsert(transaction);
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void insert(List<Transaction> transactions) {
+        super.insert(transactions);
+        try {
+            for (Transaction transaction : transactions) {
+                pendingWriter.writeInsert(transaction);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void remove(String[] productKeys) {
+        super.remove(productKeys);
+        try {
+            pendingWriter.writeStrings(RECORD_REMOVE, productKeys);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void removeWithoutKey(String[] productIds) {
+        super.removeWithoutKey(productIds);
+        try {
+            pendingWriter.writeStrings(RECORD_REMOVE_WITHOUT_KEY, productIds);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void updateProductKeys(Map<String, String> productKeys) {
+        super.updateProductKeys(productKeys);
+        try {
+            for (Map.Entry<String, String> entry : productKeys.entrySet()) {
+                pendingWriter.writeProductKey(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void insertConfirmations(String[] notifyIds) {
+        super.insertConfirmations(notifyIds);
+        try {
+            pendingWriter.writeStrings(RECORD_CONFIRMATIONS, notifyIds);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    @Override
+    public synchronized void removeConfirmations(String[] notifyIds) {
+        super.removeConfirmations(notifyIds);
+        try {
+            pendingWriter.writeStrings(RECORD_CONFIRMED, notifyIds);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        syncIfNotBatched();
+    }
+
+    /**
+     * Forgets the transactions kept in memory; they're read from the journal
+     * again on next use.
+     *
+     * @throws StorageException if the pending records couldn't be appended,
+     *                          in which case the store stays open.
+     */
+    @Override
+    public synchronized void close() {
+        sync();
+        closeJournal();
+        generation++;
+        reset();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Logger.w(TAG, "Failed to close the journal");
+            }
+            journal = null;
+        }
+    }
+
+    private void syncIfNotBatched() {
+        if (batchDepth == 0) {
+            sync();
+        }
+    }
+
+    /**
+     * Appends the pending records to the journal and syncs it to disk. If the
+     * append fails, the journal is truncated back so later appends aren't
+     * hidden behind a torn record, and the records stay pending for the next
+     * sync.
+     *
+     * @throws StorageException if the records couldn't be appended.
+     */
+    private void sync() {
+        if (pending.size() == 0) {
+            return;
+        }
+        if (journal == null) {
+            // Opening failed, so memory only holds the writes made since. It's
+            // read from the journal again, then from the pending records.
+            reset();
+            ensureOpen();
+            if (journal == null) {
+                throw new StorageException("Journal not open, keeping " + pendingWriter.count + " records pending");
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        final FileChannel channel = journal.getChannel();
+        long length = -1;
+        try {
+            length = channel.size();
+            long position = length;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            if (length >= 0) {
+                try {
+                    channel.truncate(length);
+                } catch (IOException ignored) {
+                }
+            }
+            throw new StorageException("Failed to append " + pendingWriter.count + " records to the journal", e);
+        }
+        recordCount += pendingWriter.count;
+        pending.reset();
+        pendingWriter.count = 0;
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        if (compacting || journal == null || recordCount < MIN_COMPACTION_RECORDS || recordCount <= 2 * size()) {
+            return;
+        }
+        compacting = true;
+        final int compactedGeneration = generation;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                compact(compactedGeneration);
+            }
+        }, THREAD_NAME).start();
+    }
+
+    /**
+     * Rewrites the journal with one record per stored transaction. The
+     * snapshot is written without holding the lock; records appended in the
+     * meantime are copied over before the new journal replaces the old one.
+     */
+    private void compact(int compactedGeneration) {
+        FileOutputStream out = null;
+        try {
+            final List<Transaction> snapshot;
+            final List<String> confirmations;
+            final long snapshotLength;
+            final int snapshotRecords;
+            synchronized (this) {
+                if (compactedGeneration != generation || journal == null) {
+                    return;
+                }
+                sync();
+                snapshot = queryTransactions();
+                confirmations = queryConfirmations();
+                snapshotLength = journal.getChannel().size();
+                snapshotRecords = recordCount;
+            }
+
+            out = new FileOutputStream(compactionFile);
+            final DataOutputStream target = new DataOutputStream(new BufferedOutputStream(out));
+            final RecordWriter writer = new RecordWriter(target);
+            for (Transaction transaction : snapshot) {
+                writer.writeInsert(transaction);
+            }
+            if (!confirmations.isEmpty()) {
+                writer.writeStrings(RECORD_CONFIRMATIONS, confirmations.toArray(new String[confirmations.size()]));
+            }
+            target.flush();
+
+            synchronized (this) {
+                if (compactedGeneration != generation || journal == null) {
+                    return;
+                }
+                sync();
+                final FileChannel channel = journal.getChannel();
+                final long length = channel.size();
+                long position = snapshotLength;
+                while (position < length) {
+                    position += channel.transferTo(position, length - position, out.getChannel());
+                }
+                out.getFD().sync();
+                out.close();
+                out = null;
+
+                closeJournal();
+                try {
+                    if (!compactionFile.renameTo(file)) {
+                        throw new IOException("Failed to replace the journal");
+                    }
+                } finally {
+                    journal = new RandomAccessFile(file, "rw");
+                }
+                final int previousCount = recordCount;
+                recordCount = writer.count + recordCount - snapshotRecords;
+                Logger.d(TAG, "Compacted the journal from " + previousCount + " to " + recordCount + " records");
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Failed to compact the journal", e);
+        } catch (StorageException e) {
+            Logger.e(TAG, "Failed to compact the journal", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            compactionFile.delete();
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static Transaction readTransaction(DataInputStream in) throws IOException {
+        final Transaction transaction = new Transaction();
+        transaction.orderId = readString(in);
+        transaction.productId = readString(in);
+        transaction.purchaseState = PurchaseState.valueOf(in.readInt());
+        transaction.purchaseTime = in.readLong();
+        transaction.developerPayload = readString(in);
+        transaction.productKey = readString(in);
+        return transaction;
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        final String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Encodes records, each prefixed with its length and CRC32.
+     */
+    private static final class RecordWriter {
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream target;
+        int count;
+
+        RecordWriter(DataOutputStream target) {
+            this.target = target;
+        }
+
+        void writeInsert(Transaction transaction) throws IOException {
+            recordOut.writeByte(RECORD_INSERT);
+            writeString(transaction.orderId);
+            writeString(transaction.productId);
+            recordOut.writeInt(transaction.purchaseState.ordinal());
+            recordOut.writeLong(transaction.purchaseTime);
+            writeString(transaction.developerPayload);
+            writeString(transaction.productKey);
+            endRecord();
+        }
+
+        void writeStrings(byte type, String[] values) throws IOException {
+            recordOut.writeByte(type);
+            recordOut.writeInt(values.length);
+            for (String value : values) {
+                writeString(value);
+            }
+            endRecord();
+        }
+
+        void writeProductKey(String orderId, String productKey) throws IOException {
+            recordOut.writeByte(RECORD_PRODUCT_KEY);
+            writeString(orderId);
+            writeString(productKey);
+            endRecord();
+        }
+
+        private void writeString(String value) throws IOException {
+            recordOut.writeBoolean(value != null);
+            if (value != null) {
+                recordOut.writeUTF(value);
+            }
+        }
+
+        private void endRecord() throws IOException {
+            final byte[] bytes = record.toByteArray();
+            record.reset();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            target.writeInt(bytes.length);
+            target.writeInt((int) crc.getValue());
+            target.write(bytes);
+            count++;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over a list of transactions already read from a store.
+ */
+class ListTransactionIterator extends TransactionIterator {
+    private final Iterator<Transaction> iterator;
+
+    ListTransactionIterator(List<Transaction> transactions, Decoder decoder) {
+        super(decoder);
+        this.iterator = transactions.iterator();
+    }
+
+    @Override
+    protected Transaction readNext() {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,196 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import android.database.Cursor;
+import com.google.inject.Inject;
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default {@link TransactionStore}, backed by the process-wide
+ * {@link BillingDB}. Batches are SQLite transactions.
+ */
+public class SQLiteTransactionStore implements TransactionStore {
+    private final Context context;
+
+    @Inject
+    public SQLiteTransactionStore(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    private BillingDB getDB() {
+        return BillingDB.getInstance(context);
+    }
+
+    @Override
+    public void beginBatch() {
+        getDB().beginTransaction();
+    }
+
+    @Override
+    public void endBatch(boolean successful) {
+        final BillingDB db = getDB();
+        if (successful) {
+            db.setTransactionSuccessful();
+        }
+        db.endTransaction();
+        if (successful) {
+            db.onWritesCommitted();
+        }
+    }
+
+    @Override
+    public void insert(Transaction transaction) {
+        getDB().insert(transaction);
+    }
+
+    @Override
+    public void insert(List<Transaction> transactions) {
+        getDB().insert(transactions);
+    }
+
+    @Override
+    public void remove(String[] productKeys) {
+        getDB().removeByKeys(productKeys);
+    }
+
+    @Override
+    public List<Transaction> queryTransactions() {
+        return cursorToList(getDB().queryTransactions());
+    }
+
+    @Override
+    public List<Transaction> queryTransactions(String productKey) {
+        return cursorToList(getDB().queryTransactionsByKey(productKey));
+    }
+
+    @Override
+    public List<Transaction> queryTransactions(String productKey, PurchaseState state) {
+        return cursorToList(getDB().queryTransactionsByKey(productKey, state));
+    }
+
+    @Override
+    public List<Transaction> queryTransactions(long fromTime, long toTime) {
+        return cursorToList(getDB().queryTransactions(fromTime, toTime));
+    }
+
+    @Override
+    public TransactionIterator iterateTransactions(TransactionIterator.Decoder decoder) {
+        return new CursorTransactionIterator(getDB(), decoder, CursorTransactionIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    @Override
+    public int countTransactions(String productKey, PurchaseState state) {
+        return getDB().countTransactionsByKey(productKey, state);
+    }
+
+    @Override
+    public Map<String, Integer> countPurchases() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        final Cursor c = getDB().queryPurchaseCounts();
+        if (c != null) {
+            while (c.moveToNext()) {
+                final String productKey = c.getString(0);
+                if (productKey != null) {
+                    counts.put(productKey, c.getInt(1));
+                }
+            }
+            c.close();
+        }
+        return counts;
+    }
+
+    @Override
+    public List<Transaction> queryTransactionsWithoutKey() {
+        final List<Transaction> transactions = new ArrayList<Transaction>();
+        final Cursor c = getDB().queryTransactionsWithoutKey();
+        if (c != null) {
+            while (c.moveToNext()) {
+                final Transaction transaction = new Transaction();
+                transaction.orderId = c.getString(0);
+                transaction.productId = c.getString(1);
+                transactions.add(transaction);
+            }
+            c.close();
+        }
+        return transactions;
+    }
+
+    @Override
+    public List<Transaction> queryTransactionsWithoutKey(String productId) {
+        return cursorToList(getDB().queryTransactionsWithoutKey(productId));
+    }
+
+    @Override
+    public Map<String, Integer> countPurchasesWithoutKey() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        final Cursor c = getDB().queryPurchaseCountsWithoutKey();
+        if (c != null) {
+            while (c.moveToNext()) {
+                counts.put(c.getString(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return counts;
+    }
+
+    @Override
+    public void removeWithoutKey(String[] productIds) {
+        getDB().removeWithoutKey(productIds);
+    }
+
+    @Override
+    public void updateProductKeys(Map<String, String> productKeys) {
+        getDB().updateProductKeys(productKeys);
+    }
+
+    @Override
+    public void insertConfirmations(String[] notifyIds) {
+        getDB().insertConfirmations(notifyIds);
+    }
+
+    @Override
+    public void removeConfirmations(String[] notifyIds) {
+        getDB().removeConfirmations(notifyIds);
+    }
+
+    @Override
+    public List<String> queryConfirmations() {
+        return getDB().queryConfirmations();
+    }
+
+    @Override
+    public void close() {
+        BillingDB.closeInstance();
+    }
+
+    private static List<Transaction> cursorToList(final Cursor c) {
+        final List<Transaction> transactions = new ArrayList<Transaction>();
+        if (c != null) {
+            while (c.moveToNext()) {
+                transactions.add(BillingDB.createTransaction(c));
+            }
+            c.close();
+        }
+        return transactions;
+    }
+}
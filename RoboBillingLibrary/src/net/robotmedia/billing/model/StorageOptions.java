@@ -0,0 +1,79 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+/**
+ * How the billing database trades durability for speed. Set with
+ * {@link BillingDB#setStorageOptions(StorageOptions)} before the database is
+ * first opened, usually by overriding
+ * {@code RoboBillingApplication.getStorageOptions()}.
+ */
+public class StorageOptions {
+
+    /**
+     * SQLite synchronous levels. With write-ahead logging NORMAL only risks
+     * losing the last writes on power loss, never corrupting the database;
+     * without it, NORMAL may corrupt the database and FULL should be used.
+     */
+    public enum Synchronous {
+        OFF, NORMAL, FULL
+    }
+
+    private boolean writeAheadLogging = true;
+    private Synchronous synchronous;
+    private int checkpointInterval = 0;
+
+    public boolean isWriteAheadLogging() {
+        return writeAheadLogging;
+    }
+
+    /**
+     * Enables write-ahead logging, so that readers aren't blocked while
+     * transactions are written. Ignored before Honeycomb. Enabled by default.
+     */
+    public StorageOptions setWriteAheadLogging(boolean writeAheadLogging) {
+        this.writeAheadLogging = writeAheadLogging;
+        return this;
+    }
+
+    public Synchronous getSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Sets the synchronous level, applied whether or not write-ahead logging
+     * could be enabled. By default, or if null, NORMAL is used when
+     * write-ahead logging is enabled and the platform default otherwise.
+     */
+    public StorageOptions setSynchronous(Synchronous synchronous) {
+        this.synchronous = synchronous;
+        return this;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets after how many write batches the write-ahead log is checkpointed
+     * into the database. Zero, the default, leaves it to SQLite's automatic
+     * checkpoints.
+     */
+    public StorageOptions setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+}
@@ -70,6 +70,12 @@ public class Transaction {
     public PurchaseState purchaseState;
     public long purchaseTime;
 
+    /**
+     * Keyed hash of the product id used to look up stored transactions. Only
+     * set on transactions about to be stored, and not part of equality.
+     */
+    public String productKey;
+
     public Transaction() {
     }
 
@@ -85,7 +91,10 @@ public class Transaction {
     }
 
     public Transaction clone() {
-        return new Transaction(orderId, productId, packageName, purchaseState, notificationId, purchaseTime, developerPayload);
+        final Transaction clone = new Transaction(orderId, productId, packageName, purchaseState, notificationId,
+                purchaseTime, developerPayload);
+        clone.productKey = productKey;
+        return clone;
     }
 
     @Override
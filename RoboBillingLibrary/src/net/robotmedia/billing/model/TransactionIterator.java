@@ -0,0 +1,101 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over stored transactions in purchase time order. Each transaction
+ * is decoded only when it's reached, and stores read them lazily where they
+ * can, so that the whole history is never held in memory.
+ * <p/>
+ * Must be closed if it isn't iterated to the end. Not thread-safe.
+ */
+public abstract class TransactionIterator implements Iterator<Transaction>, Closeable {
+
+    /**
+     * Decodes a stored transaction in place, e.g. unobfuscates it.
+     */
+    public interface Decoder {
+        /**
+         * @param transaction transaction as stored.
+         * @return false to skip the transaction.
+         */
+        boolean decode(Transaction transaction);
+    }
+
+    private final Decoder decoder;
+    private boolean exhausted;
+    private Transaction next;
+
+    protected TransactionIterator(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Reads the next stored transaction.
+     *
+     * @return the transaction, or null if there are no more.
+     */
+    protected abstract Transaction readNext();
+
+    /**
+     * Releases the resources held by the iterator. May be called more than
+     * once.
+     */
+    protected void release() {
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !exhausted) {
+            final Transaction transaction = readNext();
+            if (transaction == null) {
+                close();
+            } else if (decoder == null || decoder.decode(transaction)) {
+                next = transaction;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Transaction next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Transaction transaction = next;
+        next = null;
+        return transaction;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Releases the iterator. It has no more elements afterwards.
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        next = null;
+        release();
+    }
+}
@@ -16,68 +16,528 @@
 package net.robotmedia.billing.model;
 
 import android.content.Context;
-import android.database.Cursor;
 import net.robotmedia.billing.model.Transaction.PurchaseState;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Static facade over the process-wide {@link TransactionStore}, by default a
+ * {@link SQLiteTransactionStore}. The store is opened on first use and stays
+ * open until {@link #close()} is called.
+ * <p/>
+ * Purchase counts are answered from an in-memory {@link EntitlementCache}
+ * that is loaded once per process and updated as soon as a write is queued,
+ * so counting never waits for the disk.
+ * <p/>
+ * Writes are queued and stored in the background by a
+ * {@link TransactionWriter}; transaction reads wait for the queued writes
+ * first, so they always see them. {@link #flush()} waits for them explicitly.
+ * <p/>
+ * If an {@link EntitlementSnapshot} is set, it's rewritten after every batch
+ * of writes, and answers {@link #countSnapshotPurchases(byte[], String)} on
+ * cold start.
+ */
 public class TransactionManager {
 
-    public synchronized static void addTransaction(Context context, Transaction transaction) {
-        BillingDB db = new BillingDB(context);
-        db.insert(transaction);
-        db.close();
+    /**
+     * Computes the product key of a stored transaction, see
+     * {@link #backfillProductKeys(Context, ProductKeyResolver)}.
+     */
+    public interface ProductKeyResolver {
+        /**
+         * @param storedProductId product id as stored, usually obfuscated.
+         * @return the product key, or null if it can't be computed.
+         */
+        String getProductKey(String storedProductId);
     }
 
-    public synchronized static void removeTransactions(Context context, String[] skus) {
-        BillingDB db = new BillingDB(context);
-        db.remove(skus);
-        db.close();
+    private static final EntitlementCache entitlements = new EntitlementCache();
+    private static final Object writerLock = new Object();
+    // Orders snapshot updates, held while the snapshot file is written
+    private static final Object snapshotLock = new Object();
+    private static volatile TransactionWriter writer;
+    private static TransactionStore store;
+    private static volatile EntitlementSnapshot snapshot;
+
+    /**
+     * Sets the store transactions are kept in. Must be called before any
+     * transaction is stored or read, usually by the
+     * {@code RoboBillingApplication}, which injects it.
+     *
+     * @param transactionStore store, or null for the default SQLite store.
+     */
+    public synchronized static void setStore(TransactionStore transactionStore) {
+        store = transactionStore;
+        entitlements.clear();
+    }
+
+    /**
+     * Sets the snapshot of entitlements kept up to date with the store, and
+     * reads it.
+     *
+     * @param entitlementSnapshot snapshot, or null to keep none.
+     */
+    public synchronized static void setSnapshot(EntitlementSnapshot entitlementSnapshot) {
+        if (entitlementSnapshot != null) {
+            entitlementSnapshot.load();
+        }
+        snapshot = entitlementSnapshot;
     }
 
-    public synchronized static boolean isPurchased(Context context, String itemId) {
-        return countPurchases(context, itemId) > 0;
+    public static boolean isSnapshotEnabled() {
+        return snapshot != null;
     }
 
-    public synchronized static int countPurchases(Context context, String itemId) {
-        BillingDB db = new BillingDB(context);
-        final Cursor c = db.queryTransactions(itemId, PurchaseState.PURCHASED);
-        int count = 0;
-        if (c != null) {
-            count = c.getCount();
-            c.close();
+    /**
+     * Sets the key product keys are hashed with, which the snapshot needs to
+     * look up item ids. Does nothing if there's no snapshot.
+     *
+     * @param context
+     * @param salt obfuscation salt, null if product keys are the item ids.
+     * @param lookupKey key derived from the salt, null if salt is null.
+     */
+    public static void setSnapshotLookupKey(Context context, byte[] salt, byte[] lookupKey) {
+        final EntitlementSnapshot s = snapshot;
+        if (s == null) {
+            return;
         }
-        db.close();
-        return count;
+        s.setLookupKey(salt, lookupKey);
+        updateSnapshot(context);
     }
 
-    public synchronized static List<Transaction> getTransactions(Context context) {
-        BillingDB db = new BillingDB(context);
-        final Cursor c = db.queryTransactions();
-        final List<Transaction> transactions = cursorToList(c);
-        db.close();
-        return transactions;
+    /**
+     * Counts the purchases of the given item from the snapshot, without
+     * opening the store or deriving the obfuscation key.
+     *
+     * @param salt obfuscation salt, null if product keys are the item ids.
+     * @param itemId item id.
+     * @return number of purchases, or -1 if there's no usable snapshot.
+     */
+    public static int countSnapshotPurchases(byte[] salt, String itemId) {
+        final EntitlementSnapshot s = snapshot;
+        if (s == null) {
+            return -1;
+        }
+        final String productKey = s.getProductKey(salt, itemId);
+        if (productKey == null) {
+            return -1;
+        }
+        if (entitlements.isLoaded()) {
+            // -1 if queued writes must be stored first
+            return entitlements.count(productKey);
+        }
+        // The snapshot only holds stored writes
+        return entitlements.isPending(productKey) ? -1 : s.count(productKey);
     }
 
-    private static List<Transaction> cursorToList(final Cursor c) {
-        final List<Transaction> transactions = new ArrayList<Transaction>();
-        if (c != null) {
-            while (c.moveToNext()) {
-                final Transaction purchase = BillingDB.createTransaction(c);
-                transactions.add(purchase);
+    /**
+     * Brings the snapshot up to date with the entitlement cache. Must be
+     * called without holding the manager lock, the snapshot file is written
+     * before it returns.
+     */
+    private static void updateSnapshot(Context context) {
+        final EntitlementSnapshot s = snapshot;
+        if (s == null) {
+            return;
+        }
+        if (!entitlements.isLoaded()) {
+            // Updates the snapshot once loaded
+            loadEntitlements(context);
+            return;
+        }
+        synchronized (snapshotLock) {
+            if (entitlements.hasPurchasesWithoutKey()) {
+                // The snapshot can't look those up, it mustn't answer until they're backfilled
+                s.invalidate();
+            } else {
+                s.update(entitlements.getCounts());
             }
-            c.close();
         }
-        return transactions;
     }
 
-    public synchronized static List<Transaction> getTransactions(Context context, String itemId) {
-        BillingDB db = new BillingDB(context);
-        final Cursor c = db.queryTransactions(itemId);
-        final List<Transaction> transactions = cursorToList(c);
-        db.close();
+    private synchronized static TransactionStore getStore(Context context) {
+        if (store == null) {
+            store = new SQLiteTransactionStore(context);
+        }
+        return store;
+    }
+
+    /**
+     * Queues the transaction to be stored in the background.
+     *
+     * @param context
+     * @param transaction transaction to store.
+     */
+    public static void addTransaction(Context context, Transaction transaction) {
+        final List<Transaction> transactions = new ArrayList<Transaction>(1);
+        transactions.add(transaction);
+        entitlements.queueInsert(transactions);
+        getWriter(context).insert(transactions);
+    }
+
+    /**
+     * Queues the transactions to be stored in the background, in a single
+     * database transaction together with any other queued write.
+     *
+     * @param context
+     * @param transactions transactions to store.
+     */
+    public static void addTransactions(Context context, List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return;
+        }
+        entitlements.queueInsert(transactions);
+        getWriter(context).insert(transactions);
+    }
+
+    /**
+     * Queues the removal of all transactions of the given products.
+     *
+     * @param context
+     * @param productKeys lookup keys of the products.
+     */
+    public static void removeTransactions(Context context, String[] productKeys) {
+        removeTransactions(context, productKeys, null);
+    }
+
+    /**
+     * Queues the removal of all transactions of the given products, including
+     * those stored without product key.
+     *
+     * @param context
+     * @param productKeys          lookup keys of the products.
+     * @param productIdsWithoutKey stored product ids of the products, may be null.
+     */
+    public static void removeTransactions(Context context, String[] productKeys, String[] productIdsWithoutKey) {
+        entitlements.queueRemoval(productKeys, productIdsWithoutKey);
+        getWriter(context).remove(productKeys, productIdsWithoutKey);
+    }
+
+    /**
+     * Blocks until every write queued before this call is stored, or until
+     * storing them fails.
+     *
+     * @return true if the queued writes are stored, false if storing them
+     *         failed; they stay queued and are retried in the background.
+     */
+    public static boolean flush() {
+        final TransactionWriter w = writer;
+        return w == null || w.flush();
+    }
+
+    private static TransactionWriter getWriter(Context context) {
+        TransactionWriter w = writer;
+        if (w == null) {
+            synchronized (writerLock) {
+                w = writer;
+                if (w == null) {
+                    w = new TransactionWriter(context);
+                    writer = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Stores a batch of queued writes in one database transaction and updates
+     * the entitlements of the affected products, then the snapshot. Called on
+     * the writer thread.
+     */
+    static void applyWrites(Context context, List<TransactionWriter.Write> writes) {
+        storeWrites(context, writes);
+        updateSnapshot(context);
+    }
+
+    /**
+     * Forgets queued writes the writer gave up on. Nothing was stored, so
+     * only their pending entitlements are dropped. Called on the writer
+     * thread.
+     */
+    synchronized static void discardWrites(List<TransactionWriter.Write> writes) {
+        entitlements.written(writes, Collections.<String, Integer>emptyMap());
+    }
+
+    private synchronized static void storeWrites(Context context, List<TransactionWriter.Write> writes) {
+        final TransactionStore store = getStore(context);
+        final Set<String> productKeys = new HashSet<String>();
+        boolean reload = false;
+        boolean successful = false;
+        store.beginBatch();
+        try {
+            for (TransactionWriter.Write write : writes) {
+                if (write.transactions != null) {
+                    store.insert(write.transactions);
+                    for (Transaction transaction : write.transactions) {
+                        productKeys.add(transaction.productKey);
+                    }
+                } else if (write.productKeysByOrder != null) {
+                    store.updateProductKeys(write.productKeysByOrder);
+                    reload = true;
+                } else {
+                    store.remove(write.productKeys);
+                    productKeys.addAll(Arrays.asList(write.productKeys));
+                    if (write.productIdsWithoutKey != null && write.productIdsWithoutKey.length > 0) {
+                        store.removeWithoutKey(write.productIdsWithoutKey);
+                        reload = true;
+                    }
+                }
+            }
+            successful = true;
+        } finally {
+            store.endBatch(successful);
+        }
+        if (reload && entitlements.isLoaded()) {
+            entitlements.load(store, writes);
+        } else {
+            final Map<String, Integer> counts = new HashMap<String, Integer>();
+            if (entitlements.isLoaded()) {
+                for (String productKey : productKeys) {
+                    if (productKey != null) {
+                        counts.put(productKey, store.countTransactions(productKey, PurchaseState.PURCHASED));
+                    }
+                }
+            }
+            entitlements.written(writes, counts);
+        }
+    }
+
+    public static boolean isPurchased(Context context, String productKey) {
+        return countPurchases(context, productKey, null) > 0;
+    }
+
+    /**
+     * @param context
+     * @param productKey          lookup key of the product.
+     * @param productIdWithoutKey stored product id of the product, to also count
+     *                            its purchases stored without product key; may be null.
+     * @return true if the product was purchased.
+     */
+    public static boolean isPurchased(Context context, String productKey, String productIdWithoutKey) {
+        return countPurchases(context, productKey, productIdWithoutKey) > 0;
+    }
+
+    public static int countPurchases(Context context, String productKey) {
+        return countPurchases(context, productKey, null);
+    }
+
+    /**
+     * @param context
+     * @param productKey          lookup key of the product.
+     * @param productIdWithoutKey stored product id of the product, to also count
+     *                            its purchases stored without product key; may be null.
+     * @return number of purchases of the product.
+     */
+    public static int countPurchases(Context context, String productKey, String productIdWithoutKey) {
+        if (!entitlements.isLoaded()) {
+            loadEntitlements(context);
+        }
+        int count = entitlements.count(productKey);
+        if (count < 0) {
+            count = countAfterFlush(productKey);
+        }
+        return count + entitlements.countWithoutKey(productIdWithoutKey);
+    }
+
+    /**
+     * Counts the purchases of a product whose queued writes may replace
+     * stored purchases, once they're stored. If storing them fails, the
+     * stored count is returned.
+     */
+    private static int countAfterFlush(String productKey) {
+        flush();
+        return entitlements.countStoredIfUnknown(productKey);
+    }
+
+    /**
+     * Counts the purchases of several products at once. The counts come from
+     * the entitlement cache, loaded with a single grouped query on first use.
+     *
+     * @param context
+     * @param productKeys lookup keys of the products.
+     * @return number of purchases by product key, only for the products with
+     *         at least one purchase.
+     */
+    public static Map<String, Integer> countPurchases(Context context, Collection<String> productKeys) {
+        return countPurchases(context, productKeys, null);
+    }
+
+    /**
+     * Counts the purchases of several products at once, including those
+     * stored without product key.
+     *
+     * @param context
+     * @param productKeys          lookup keys of the products.
+     * @param productIdsWithoutKey stored product id by product key, may be null.
+     * @return number of purchases by product key, only for the products with
+     *         at least one purchase.
+     */
+    public static Map<String, Integer> countPurchases(Context context, Collection<String> productKeys,
+                                                      Map<String, String> productIdsWithoutKey) {
+        if (!entitlements.isLoaded()) {
+            loadEntitlements(context);
+        }
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String productKey : productKeys) {
+            int count = entitlements.count(productKey);
+            if (count < 0) {
+                count = countAfterFlush(productKey);
+            }
+            if (productIdsWithoutKey != null) {
+                count += entitlements.countWithoutKey(productIdsWithoutKey.get(productKey));
+            }
+            if (count > 0) {
+                counts.put(productKey, count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns true if purchases stored by older versions still lack their
+     * product key, in which case lookups must also pass the stored product id.
+     *
+     * @param context
+     */
+    public static boolean hasPurchasesWithoutKey(Context context) {
+        if (!entitlements.isLoaded()) {
+            loadEntitlements(context);
+        }
+        return entitlements.hasPurchasesWithoutKey();
+    }
+
+    /**
+     * Fills in the product key of the transactions stored before the key was
+     * introduced. Keys are computed without holding the manager lock and
+     * stored by the writer. Transactions whose key can't be resolved are left
+     * as they are, and retried on the next call.
+     *
+     * @param context
+     * @param resolver computes the key of a stored product id.
+     * @return number of transactions updated.
+     */
+    public static int backfillProductKeys(Context context, ProductKeyResolver resolver) {
+        final Map<String, String> productKeys = new HashMap<String, String>();
+        for (Transaction transaction : getStore(context).queryTransactionsWithoutKey()) {
+            final String productKey = resolver.getProductKey(transaction.productId);
+            if (productKey != null && transaction.orderId != null) {
+                productKeys.put(transaction.orderId, productKey);
+            }
+        }
+        if (productKeys.isEmpty()) {
+            return 0;
+        }
+        getWriter(context).updateProductKeys(productKeys);
+        flush();
+        return productKeys.size();
+    }
+
+    /**
+     * Loads the entitlement cache if it hasn't been loaded yet. Calling this
+     * from a background thread at startup keeps the first
+     * {@link #isPurchased(Context, String)} call from hitting the database.
+     *
+     * @param context
+     */
+    public static void loadEntitlements(Context context) {
+        synchronized (TransactionManager.class) {
+            if (entitlements.isLoaded()) {
+                return;
+            }
+            entitlements.load(getStore(context));
+        }
+        // Corrects the snapshot if the last write didn't make it there
+        updateSnapshot(context);
+    }
+
+    /**
+     * Adds the given notifications to the confirmation outbox of the store.
+     * Must only be called once their transactions are stored.
+     *
+     * @param context
+     * @param notifyIds ids of the notifications pending confirmation.
+     */
+    public static void addConfirmations(Context context, String[] notifyIds) {
+        getStore(context).insertConfirmations(notifyIds);
+    }
+
+    /**
+     * Removes the given notifications from the confirmation outbox.
+     *
+     * @param context
+     * @param notifyIds ids of the confirmed notifications.
+     */
+    public static void removeConfirmations(Context context, String[] notifyIds) {
+        getStore(context).removeConfirmations(notifyIds);
+    }
+
+    /**
+     * @param context
+     * @return ids of the notifications in the confirmation outbox, oldest first.
+     */
+    public static List<String> getConfirmations(Context context) {
+        return getStore(context).queryConfirmations();
+    }
+
+    public static List<Transaction> getTransactions(Context context) {
+        flush();
+        return getStore(context).queryTransactions();
+    }
+
+    /**
+     * Returns an iterator over all stored transactions in purchase time order,
+     * reading them lazily where the store allows it. The iterator must be closed unless it's
+     * iterated to the end.
+     *
+     * @param context
+     * @param decoder decodes each stored transaction, may be null.
+     * @return iterator over the stored transactions.
+     */
+    public static TransactionIterator iterateTransactions(Context context, TransactionIterator.Decoder decoder) {
+        flush();
+        return getStore(context).iterateTransactions(decoder);
+    }
+
+    public static List<Transaction> getTransactions(Context context, String productKey) {
+        return getTransactions(context, productKey, null);
+    }
+
+    /**
+     * @param context
+     * @param productKey          lookup key of the product.
+     * @param productIdWithoutKey stored product id of the product, to also return
+     *                            its transactions stored without product key; may be null.
+     * @return transactions of the product.
+     */
+    public static List<Transaction> getTransactions(Context context, String productKey, String productIdWithoutKey) {
+        flush();
+        final TransactionStore store = getStore(context);
+        final List<Transaction> transactions = store.queryTransactions(productKey);
+        if (productIdWithoutKey != null) {
+            transactions.addAll(store.queryTransactionsWithoutKey(productIdWithoutKey));
+        }
         return transactions;
     }
 
+    /**
+     * Stores the queued writes and closes the store. Should be called when the
+     * application shuts down; any later call reopens it.
+     */
+    public static void close() {
+        flush();
+        synchronized (TransactionManager.class) {
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
 }
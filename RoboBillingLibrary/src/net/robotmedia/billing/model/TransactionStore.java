@@ -0,0 +1,153 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence of stored transactions, behind the {@link TransactionManager}.
+ * Transactions are stored as given (usually obfuscated) and looked up by
+ * their product key. A transaction replaces any stored transaction with the
+ * same order id.
+ * <p/>
+ * Implementations must be thread-safe. Writes only come from the
+ * {@link TransactionManager} writer thread, grouped in batches.
+ *
+ * @see SQLiteTransactionStore
+ * @see HeapTransactionStore
+ * @see JournalTransactionStore
+ */
+public interface TransactionStore {
+
+    /**
+     * Starts a batch of writes. Stores that support it apply the batch
+     * atomically.
+     */
+    void beginBatch();
+
+    /**
+     * Ends the batch started by {@link #beginBatch()}.
+     *
+     * @param successful false if a write of the batch failed, in which case
+     *                   stores that support it roll the batch back.
+     */
+    void endBatch(boolean successful);
+
+    void insert(Transaction transaction);
+
+    void insert(List<Transaction> transactions);
+
+    /**
+     * Removes all transactions of the given products.
+     *
+     * @param productKeys lookup keys of the products.
+     */
+    void remove(String[] productKeys);
+
+    List<Transaction> queryTransactions();
+
+    List<Transaction> queryTransactions(String productKey);
+
+    List<Transaction> queryTransactions(String productKey, PurchaseState state);
+
+    /**
+     * Returns the transactions purchased in the given time range, in purchase
+     * time order.
+     *
+     * @param fromTime inclusive lower bound, in milliseconds since the epoch.
+     * @param toTime   exclusive upper bound, in milliseconds since the epoch.
+     */
+    List<Transaction> queryTransactions(long fromTime, long toTime);
+
+    /**
+     * Iterates over all transactions in purchase time order.
+     *
+     * @param decoder decodes each transaction, may be null.
+     */
+    TransactionIterator iterateTransactions(TransactionIterator.Decoder decoder);
+
+    int countTransactions(String productKey, PurchaseState state);
+
+    /**
+     * @return the number of purchased transactions by product key.
+     */
+    Map<String, Integer> countPurchases();
+
+    /**
+     * Returns the transactions stored without a product key. Only their order
+     * id and product id need to be set.
+     */
+    List<Transaction> queryTransactionsWithoutKey();
+
+    /**
+     * Returns the transactions of the given product stored without a product
+     * key.
+     *
+     * @param productId product id as stored, usually obfuscated.
+     */
+    List<Transaction> queryTransactionsWithoutKey(String productId);
+
+    /**
+     * @return the number of purchased transactions stored without a product
+     *         key, by stored product id.
+     */
+    Map<String, Integer> countPurchasesWithoutKey();
+
+    /**
+     * Removes the transactions of the given products stored without a product
+     * key.
+     *
+     * @param productIds product ids as stored, usually obfuscated.
+     */
+    void removeWithoutKey(String[] productIds);
+
+    /**
+     * Sets the product key of the given transactions.
+     *
+     * @param productKeys product keys by order id.
+     */
+    void updateProductKeys(Map<String, String> productKeys);
+
+    /**
+     * Adds the given notifications to the confirmation outbox, ignoring those
+     * already there. Stores that lose their transactions on restart lose the
+     * outbox with them, so that redelivered notifications are fetched again.
+     *
+     * @param notifyIds ids of notifications whose transactions are stored.
+     */
+    void insertConfirmations(String[] notifyIds);
+
+    /**
+     * Removes the given notifications from the confirmation outbox.
+     *
+     * @param notifyIds ids of confirmed notifications.
+     */
+    void removeConfirmations(String[] notifyIds);
+
+    /**
+     * @return ids of the notifications in the confirmation outbox, oldest
+     *         first.
+     */
+    List<String> queryConfirmations();
+
+    /**
+     * Releases the resources of the store. It's reopened on next use.
+     */
+    void close();
+}
@@ -0,0 +1,225 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import com.ensolabs.robobilling.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind stage of the {@link TransactionManager}. Inserts and removals
+ * are queued and written by a single background thread; whatever is queued
+ * when the thread gets to it is written in one database transaction.
+ * {@link #flush()} waits until everything queued before the call is stored.
+ * <p/>
+ * A batch that fails to be stored stays at the head of the queue. Its writes
+ * are then retried one at a time, so that a write that can't be stored
+ * doesn't hold back the others, with an increasing delay. A write that keeps
+ * failing is dropped after {@link #MAX_ATTEMPTS} attempts and
+ * {@link #flush()} reports the failure. Purchases are only confirmed after a
+ * successful flush, so the Market sends a dropped purchase again.
+ */
+class TransactionWriter {
+    private static final String TAG = "TransactionWriter";
+    private static final String THREAD_NAME = "RoboBilling-writer";
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+    static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * A queued write: transactions to insert, products to remove, or product
+     * keys to set.
+     */
+    static final class Write {
+        final List<Transaction> transactions;
+        final String[] productKeys;
+        final String[] productIdsWithoutKey;
+        final Map<String, String> productKeysByOrder;
+
+        Write(List<Transaction> transactions, String[] productKeys, String[] productIdsWithoutKey,
+              Map<String, String> productKeysByOrder) {
+            this.transactions = transactions;
+            this.productKeys = productKeys;
+            this.productIdsWithoutKey = productIdsWithoutKey;
+            this.productKeysByOrder = productKeysByOrder;
+        }
+    }
+
+    private final Context context;
+    private final Object lock = new Object();
+    private final List<Write> queue = new ArrayList<Write>();
+    private long queuedCount;
+    private long writtenCount;
+    private long failureCount;
+    private long retryDelay = MIN_RETRY_DELAY;
+    // Writes at the head of the queue to store one at a time, after a failed batch
+    private int isolated;
+    // Failed attempts to store the write at the head of the queue
+    private int attempts;
+    private Handler handler;
+
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    TransactionWriter(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    void insert(List<Transaction> transactions) {
+        enqueue(new Write(transactions, null, null, null));
+    }
+
+    void remove(String[] productKeys, String[] productIdsWithoutKey) {
+        enqueue(new Write(null, productKeys, productIdsWithoutKey, null));
+    }
+
+    void updateProductKeys(Map<String, String> productKeysByOrder) {
+        enqueue(new Write(null, null, null, productKeysByOrder));
+    }
+
+    private void enqueue(Write write) {
+        final boolean schedule;
+        synchronized (lock) {
+            queue.add(write);
+            queuedCount++;
+            schedule = queue.size() == 1;
+        }
+        if (schedule) {
+            getHandler().post(drainer);
+        }
+    }
+
+    /**
+     * Blocks until every write queued before this call is stored, or until
+     * storing them fails. Returns immediately when called from the writer
+     * thread.
+     *
+     * @return true if the writes were stored, false if storing them failed;
+     *         they stay queued and are retried unless they failed
+     *         {@link #MAX_ATTEMPTS} times.
+     */
+    boolean flush() {
+        synchronized (lock) {
+            if (handler != null && Looper.myLooper() == handler.getLooper()) {
+                return true;
+            }
+            final long target = queuedCount;
+            final long failures = failureCount;
+            while (writtenCount < target) {
+                if (failureCount != failures) {
+                    return false;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void drain() {
+        final List<Write> batch;
+        synchronized (lock) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            final List<Write> head = queue.subList(0, isolated > 0 ? 1 : queue.size());
+            batch = new ArrayList<Write>(head);
+            head.clear();
+        }
+        try {
+            TransactionManager.applyWrites(context, batch);
+        } catch (RuntimeException e) {
+            onFailed(batch, e);
+            return;
+        }
+        final boolean more;
+        synchronized (lock) {
+            writtenCount += batch.size();
+            attempts = 0;
+            if (isolated > 0) {
+                isolated--;
+            }
+            retryDelay = MIN_RETRY_DELAY;
+            more = !queue.isEmpty();
+            lock.notifyAll();
+        }
+        if (more) {
+            // Queued in the meantime, or left by a failed batch
+            getHandler().post(drainer);
+        }
+    }
+
+    private void onFailed(List<Write> batch, RuntimeException e) {
+        final boolean dropped;
+        final long delay;
+        synchronized (lock) {
+            failureCount++;
+            if (batch.size() == 1 && ++attempts >= MAX_ATTEMPTS) {
+                dropped = true;
+                writtenCount++;
+                attempts = 0;
+                if (isolated > 0) {
+                    isolated--;
+                }
+                delay = 0;
+            } else {
+                dropped = false;
+                // Keep the batch ahead of the writes queued in the meantime
+                queue.addAll(0, batch);
+                isolated = Math.max(isolated, batch.size());
+                delay = retryDelay;
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            }
+            lock.notifyAll();
+        }
+        if (dropped) {
+            Logger.e(TAG, "Dropping a write that failed " + MAX_ATTEMPTS + " times", e);
+            TransactionManager.discardWrites(batch);
+            getHandler().post(drainer);
+        } else {
+            Logger.e(TAG, "Failed to store " + batch.size() + " writes, retrying in " + delay + " ms", e);
+            // Writes queued during the attempt may have posted the drainer already
+            getHandler().removeCallbacks(drainer);
+            getHandler().postDelayed(drainer, delay);
+        }
+    }
+
+    private Handler getHandler() {
+        synchronized (lock) {
+            if (handler == null) {
+                final HandlerThread thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                handler = new Handler(thread.getLooper());
+            }
+            return handler;
+        }
+    }
+}
@@ -61,14 +61,46 @@ public class DefaultSignatureValidator implements ISignatureValidator {
 
     private IConfiguration configuration;
 
+    // The parsed key is cached along with the string it was parsed from, so a
+    // configuration that returns a different key is picked up.
+    private volatile CachedPublicKey cachedPublicKey;
+
+    // Signature engines aren't thread-safe, so every thread gets its own.
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+
     public DefaultSignatureValidator(IConfiguration configuration) {
         this.configuration = configuration;
     }
 
+    /**
+     * Returns the public key for the given Base64-encoded string, parsing it
+     * only if it differs from the last one.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    private PublicKey getPublicKey(String encodedPublicKey) {
+        CachedPublicKey cached = cachedPublicKey;
+        if (cached == null || !cached.encodedKey.equals(encodedPublicKey)) {
+            cached = new CachedPublicKey(encodedPublicKey, generatePublicKey(encodedPublicKey));
+            cachedPublicKey = cached;
+        }
+        return cached.publicKey;
+    }
+
+    private Signature getSignature() throws NoSuchAlgorithmException {
+        Signature sig = signatures.get();
+        if (sig == null) {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signatures.set(sig);
+        }
+        return sig;
+    }
+
     private boolean validate(PublicKey publicKey, String signedData, String signature) {
         Signature sig;
         try {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig = getSignature();
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
             if (!sig.verify(Base64.decode(signature))) {
@@ -104,8 +136,18 @@ public class DefaultSignatureValidator implements ISignatureValidator {
             return false;
         }
 
-        PublicKey key = generatePublicKey(publicKey);
+        PublicKey key = getPublicKey(publicKey);
         return validate(key, signedData, signature);
     }
 
+    private static final class CachedPublicKey {
+        private final String encodedKey;
+        private final PublicKey publicKey;
+
+        CachedPublicKey(String encodedKey, PublicKey publicKey) {
+            this.encodedKey = encodedKey;
+            this.publicKey = publicKey;
+        }
+    }
+
 }
@@ -23,6 +23,7 @@ import java.security.spec.KeySpec;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
@@ -30,18 +31,23 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * An obfuscator that uses AES to encrypt data.
+ * An obfuscator that uses AES to encrypt data. Instances are safe to share
+ * between threads.
  */
 public class AESObfuscator {
     private static final String UTF8 = "UTF-8";
     private static final String KEYGEN_ALGORITHM = "PBEWITHSHAAND256BITAES-CBC-BC";
     private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String LOOKUP_KEY_LABEL = "net.robotmedia.billing.utils.AESObfuscator-lookup";
     private static final byte[] IV =
             {16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74};
     private static final String header = "net.robotmedia.billing.utils.AESObfuscator-1|";
 
     private Cipher mEncryptor;
     private Cipher mDecryptor;
+    private Mac mMac;
+    private byte[] mLookupKey;
 
     public AESObfuscator(byte[] salt, String password) {
         try {
@@ -54,13 +60,70 @@ public class AESObfuscator {
             mEncryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
             mDecryptor = Cipher.getInstance(CIPHER_ALGORITHM);
             mDecryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+            // The lookup hash uses its own key, derived from the AES one
+            Mac kdf = Mac.getInstance(MAC_ALGORITHM);
+            kdf.init(new SecretKeySpec(tmp.getEncoded(), MAC_ALGORITHM));
+            mLookupKey = kdf.doFinal(LOOKUP_KEY_LABEL.getBytes(UTF8));
+            mMac = newLookupMac(mLookupKey);
         } catch (GeneralSecurityException e) {
             // This can't happen on a compatible Android device.
             throw new RuntimeException("Invalid environment", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Returns a keyed hash (HMAC-SHA256) of the given string. Unlike the
+     * obfuscated value it can't be reverted, and it's meant to look up stored
+     * data by a value that must not be stored in the clear.
+     *
+     * @param original string to hash.
+     * @return Base64 encoded hash, or null if the string is null.
+     */
+    public synchronized String hash(String original) {
+        return hash(mMac, original);
+    }
+
+    /**
+     * Returns the key {@link #hash(String)} uses. Hashes can be computed from
+     * it with {@link #newLookupMac(byte[])} without deriving the AES key again,
+     * and it reveals nothing about the AES key.
+     */
+    byte[] getLookupKey() {
+        return mLookupKey.clone();
+    }
+
+    /**
+     * Creates a MAC for {@link #hash(Mac, String)} from a key returned by
+     * {@link #getLookupKey()}.
+     */
+    public static Mac newLookupMac(byte[] lookupKey) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(lookupKey, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Same as {@link #hash(String)}, with the given MAC. The MAC must not be
+     * used by several threads at once.
+     */
+    public static String hash(Mac mac, String original) {
+        if (original == null) {
+            return null;
+        }
+        try {
+            return Base64.encode(mac.doFinal(original.getBytes(UTF8)));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
         }
     }
 
-    public String obfuscate(String original) {
+    public synchronized String obfuscate(String original) {
         if (original == null) {
             return null;
         }
@@ -74,7 +137,7 @@ public class AESObfuscator {
         }
     }
 
-    public String unobfuscate(String obfuscated) throws ValidationException {
+    public synchronized String unobfuscate(String obfuscated) throws ValidationException {
         if (obfuscated == null) {
             return null;
         }
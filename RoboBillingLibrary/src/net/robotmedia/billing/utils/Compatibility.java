@@ -17,8 +17,11 @@ package net.robotmedia.billing.utils;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Intent;
 import android.content.IntentSender;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
 import com.ensolabs.robobilling.logging.Logger;
 
 import java.lang.reflect.Field;
@@ -26,6 +29,10 @@ import java.lang.reflect.Method;
 
 public class Compatibility {
     private static Method startIntentSender;
+    private static Method goAsync;
+    private static Method finishPendingResult;
+    private static Method enableWriteAheadLogging;
+    private static Method applyEditor;
     public static int START_NOT_STICKY;
     @SuppressWarnings("rawtypes")
     private static final Class[] START_INTENT_SENDER_SIG = new Class[]{
@@ -53,6 +60,99 @@ public class Compatibility {
         } catch (NoSuchMethodException e) {
             startIntentSender = null;
         }
+        try {
+            goAsync = BroadcastReceiver.class.getMethod("goAsync");
+            finishPendingResult = goAsync.getReturnType().getMethod("finish");
+        } catch (SecurityException e) {
+            goAsync = null;
+        } catch (NoSuchMethodException e) {
+            goAsync = null;
+        }
+        try {
+            enableWriteAheadLogging = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+        } catch (SecurityException e) {
+            enableWriteAheadLogging = null;
+        } catch (NoSuchMethodException e) {
+            enableWriteAheadLogging = null;
+        }
+        try {
+            applyEditor = SharedPreferences.Editor.class.getMethod("apply");
+        } catch (SecurityException e) {
+            applyEditor = null;
+        } catch (NoSuchMethodException e) {
+            applyEditor = null;
+        }
+    }
+
+    /**
+     * Calls SharedPreferences.Editor.apply() on platforms that support it
+     * (2.3 and beyond), so the changes are written in the background.
+     * Commits them otherwise.
+     *
+     * @param editor editor with the changes.
+     */
+    public static void apply(SharedPreferences.Editor editor) {
+        if (applyEditor != null) {
+            try {
+                applyEditor.invoke(editor);
+                return;
+            } catch (Exception e) {
+                Logger.e(Compatibility.class.getSimpleName(), "apply", e);
+            }
+        }
+        editor.commit();
+    }
+
+    /**
+     * Calls SQLiteDatabase.enableWriteAheadLogging() on platforms that support
+     * it (3.0 and beyond).
+     *
+     * @param db database, not in a transaction.
+     * @return true if write-ahead logging is enabled.
+     */
+    public static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+        if (enableWriteAheadLogging != null) {
+            try {
+                return (Boolean) enableWriteAheadLogging.invoke(db);
+            } catch (Exception e) {
+                Logger.e(Compatibility.class.getSimpleName(), "enableWriteAheadLogging", e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calls BroadcastReceiver.goAsync() on platforms that support it (3.0 and
+     * beyond), so the broadcast stays active after onReceive returns.
+     *
+     * @param receiver receiver currently in onReceive.
+     * @return the pending result to pass to {@link #finish(Object)}, or null if
+     *         unsupported.
+     */
+    public static Object goAsync(BroadcastReceiver receiver) {
+        if (goAsync != null) {
+            try {
+                return goAsync.invoke(receiver);
+            } catch (Exception e) {
+                Logger.e(Compatibility.class.getSimpleName(), "goAsync", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finishes a pending result obtained from {@link #goAsync(BroadcastReceiver)}.
+     *
+     * @param pendingResult pending result, may be null.
+     */
+    public static void finish(Object pendingResult) {
+        if (pendingResult != null) {
+            try {
+                finishPendingResult.invoke(pendingResult);
+            } catch (Exception e) {
+                Logger.e(Compatibility.class.getSimpleName(), "finish", e);
+            }
+        }
     }
 
     public static void startIntentSender(Activity activity, IntentSender intentSender, Intent intent) {
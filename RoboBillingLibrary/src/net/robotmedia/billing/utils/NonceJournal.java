@@ -0,0 +1,103 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Durable record of outstanding nonces, kept in shared preferences so that a
+ * response arriving after the process was killed can still be verified.
+ * Every nonce is stored with its expiration time; expired entries are dropped
+ * when the journal is loaded, and nonces the registry drops are removed as
+ * they go.
+ * <p/>
+ * Changes are applied in the background where the platform supports it.
+ * Android finishes pending writes when an activity pauses or a service stops,
+ * before the process can be killed.
+ */
+public class NonceJournal implements NonceRegistry.Listener {
+    private static final String PREFERENCES_NAME = "robobilling_nonces";
+
+    private final SharedPreferences preferences;
+
+    public NonceJournal(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a nonce.
+     *
+     * @param nonce  nonce.
+     * @param expiry expiration time in milliseconds since the epoch.
+     */
+    public synchronized void add(long nonce, long expiry) {
+        Compatibility.apply(preferences.edit().putLong(Long.toString(nonce), expiry));
+    }
+
+    public synchronized void remove(long nonce) {
+        Compatibility.apply(preferences.edit().remove(Long.toString(nonce)));
+    }
+
+    /**
+     * Removes the nonces the registry expired or evicted.
+     */
+    @Override
+    public synchronized void onDropped(long[] nonces) {
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (long nonce : nonces) {
+            editor.remove(Long.toString(nonce));
+        }
+        Compatibility.apply(editor);
+    }
+
+    /**
+     * Adds every unexpired nonce of the journal to the registry, and removes the
+     * expired ones from the journal.
+     *
+     * @param registry registry to restore the nonces into.
+     * @return number of nonces restored.
+     */
+    public synchronized int restore(NonceRegistry registry) {
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = preferences.edit();
+        boolean modified = false;
+        int restored = 0;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            long nonce = 0;
+            long expiry = 0;
+            try {
+                nonce = Long.parseLong(entry.getKey());
+                expiry = entry.getValue() instanceof Long ? (Long) entry.getValue() : 0;
+            } catch (NumberFormatException e) {
+                // Not a nonce, drop it
+            }
+            if (nonce == 0 || expiry <= now) {
+                editor.remove(entry.getKey());
+                modified = true;
+            } else {
+                registry.add(nonce, expiry);
+                restored++;
+            }
+        }
+        if (modified) {
+            Compatibility.apply(editor);
+        }
+        return restored;
+    }
+}
@@ -0,0 +1,326 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.utils;
+
+/**
+ * Thread-safe set of outstanding nonces. Nonces expire after a time to live,
+ * and once the registry is full expired nonces are purged and, if needed, the
+ * oldest one is evicted, so nonces whose response never arrives don't pile up.
+ * <p/>
+ * Nonces are kept in an open-addressing table of primitive longs, so no boxing
+ * takes place. Zero is reserved and can't be registered.
+ * <p/>
+ * A {@link Listener} is told about the nonces that expire or are evicted,
+ * after the registry's lock is released.
+ */
+public class NonceRegistry {
+    public interface Listener {
+        /**
+         * Called with the nonces the registry dropped because they expired or
+         * were evicted. Not called for nonces removed or consumed.
+         */
+        void onDropped(long[] nonces);
+    }
+
+
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_SIZE = 1024;
+    private static final long EMPTY = 0;
+
+    private final long timeToLive;
+    private final int maxSize;
+    private final int mask;
+    private final long[] nonces;
+    private final long[] expiries;
+    private int size;
+    private volatile Listener listener;
+    // Nonces dropped under the lock, handed to the listener once it's released
+    private long[] dropped;
+    private int droppedCount;
+
+    private long expiredCount;
+    private long unknownCount;
+    private long evictedCount;
+
+    public NonceRegistry() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param timeToLive time in milliseconds after which a nonce expires.
+     * @param maxSize    maximum number of nonces kept.
+     */
+    public NonceRegistry(long timeToLive, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.timeToLive = timeToLive;
+        this.maxSize = maxSize;
+        // Keep the load factor at or below one half
+        int capacity = 2;
+        while (capacity < maxSize * 2) {
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        nonces = new long[capacity];
+        expiries = new long[capacity];
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * @param listener listener of dropped nonces, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers a nonce that expires after the time to live.
+     *
+     * @param nonce nonce, must not be zero.
+     */
+    public void add(long nonce) {
+        add(nonce, System.currentTimeMillis() + timeToLive);
+    }
+
+    /**
+     * Registers a nonce that expires at the given time.
+     *
+     * @param nonce  nonce, must not be zero.
+     * @param expiry expiration time in milliseconds since the epoch.
+     */
+    public void add(long nonce, long expiry) {
+        if (nonce == EMPTY) {
+            throw new IllegalArgumentException("Zero is not a valid nonce");
+        }
+        final long[] removed;
+        synchronized (this) {
+            final int index = indexOf(nonce);
+            if (index >= 0) {
+                expiries[index] = expiry;
+                return;
+            }
+            if (size >= maxSize) {
+                purgeExpired(System.currentTimeMillis());
+                if (size >= maxSize) {
+                    evictOldest();
+                }
+            }
+            int i = slot(nonce);
+            while (nonces[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            nonces[i] = nonce;
+            expiries[i] = expiry;
+            size++;
+            removed = takeDropped();
+        }
+        notifyDropped(removed);
+    }
+
+    /**
+     * Returns true if the nonce is registered and hasn't expired.
+     */
+    public boolean contains(long nonce) {
+        final boolean found;
+        final long[] removed;
+        synchronized (this) {
+            found = find(nonce) >= 0;
+            removed = takeDropped();
+        }
+        notifyDropped(removed);
+        return found;
+    }
+
+    /**
+     * Removes the nonce.
+     *
+     * @return true if it was registered.
+     */
+    public synchronized boolean remove(long nonce) {
+        final int index = indexOf(nonce);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Removes the nonce if it's registered and hasn't expired. A nonce that
+     * isn't found is counted as unknown.
+     *
+     * @return true if the nonce was valid.
+     */
+    public boolean consume(long nonce) {
+        final boolean valid;
+        final long[] removed;
+        synchronized (this) {
+            final int index = find(nonce);
+            if (index < 0) {
+                unknownCount++;
+                valid = false;
+            } else {
+                removeAt(index);
+                valid = true;
+            }
+            removed = takeDropped();
+        }
+        notifyDropped(removed);
+        return valid;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return number of nonces that expired before their response arrived.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return number of responses whose nonce was unknown or expired.
+     */
+    public synchronized long getUnknownCount() {
+        return unknownCount;
+    }
+
+    /**
+     * @return number of nonces evicted before expiring because the registry
+     *         was full.
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Returns the index of the nonce, removing it if it expired.
+     */
+    private int find(long nonce) {
+        final int index = indexOf(nonce);
+        if (index >= 0 && expiries[index] <= System.currentTimeMillis()) {
+            drop(index);
+            expiredCount++;
+            return -1;
+        }
+        return index;
+    }
+
+    private int slot(long nonce) {
+        final int hash = (int) (nonce ^ (nonce >>> 32));
+        return (hash * 0x9E3779B9) & mask;
+    }
+
+    private int indexOf(long nonce) {
+        if (nonce == EMPTY) {
+            return -1;
+        }
+        for (int i = slot(nonce); ; i = (i + 1) & mask) {
+            if (nonces[i] == EMPTY) {
+                return -1;
+            }
+            if (nonces[i] == nonce) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry at the given index, shifting back the entries of its
+     * probe sequence so that lookups keep working without tombstones.
+     */
+    private void removeAt(int index) {
+        int hole = index;
+        int i = index;
+        while (true) {
+            i = (i + 1) & mask;
+            final long nonce = nonces[i];
+            if (nonce == EMPTY) {
+                break;
+            }
+            final int home = slot(nonce);
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, i]
+            final boolean inPlace = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+            if (!inPlace) {
+                nonces[hole] = nonce;
+                expiries[hole] = expiries[i];
+                hole = i;
+            }
+        }
+        nonces[hole] = EMPTY;
+        expiries[hole] = 0;
+        size--;
+    }
+
+    private void purgeExpired(long now) {
+        for (int i = 0; i <= mask; i++) {
+            // Re-check the same index, removal may have shifted another entry into it
+            while (nonces[i] != EMPTY && expiries[i] <= now) {
+                drop(i);
+                expiredCount++;
+            }
+        }
+    }
+
+    private void evictOldest() {
+        int oldest = -1;
+        for (int i = 0; i <= mask; i++) {
+            if (nonces[i] != EMPTY && (oldest < 0 || expiries[i] < expiries[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest >= 0) {
+            drop(oldest);
+            evictedCount++;
+        }
+    }
+
+    /**
+     * Removes the entry at the given index, keeping its nonce for the listener.
+     */
+    private void drop(int index) {
+        if (listener != null) {
+            if (dropped == null) {
+                dropped = new long[maxSize];
+            }
+            dropped[droppedCount++] = nonces[index];
+        }
+        removeAt(index);
+    }
+
+    private long[] takeDropped() {
+        if (droppedCount == 0) {
+            return null;
+        }
+        final long[] result = new long[droppedCount];
+        System.arraycopy(dropped, 0, result, 0, droppedCount);
+        droppedCount = 0;
+        return result;
+    }
+
+    private void notifyDropped(long[] removed) {
+        final Listener l = listener;
+        if (removed != null && l != null) {
+            l.onDropped(removed);
+        }
+    }
+}
@@ -21,29 +21,115 @@ import com.ensolabs.robobilling.logging.Logger;
 import net.robotmedia.billing.utils.AESObfuscator.ValidationException;
 
 import java.security.SecureRandom;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Security {
 
-    private static HashSet<Long> knownNonces = new HashSet<Long>();
+    private static final NonceRegistry knownNonces = new NonceRegistry();
     private static final SecureRandom RANDOM = new SecureRandom();
     private static final String TAG = Security.class.getSimpleName();
+    private static final int MAX_CACHED_HASHES = 1024;
+
+    private static volatile NonceJournal nonceJournal;
+    private static volatile String obfuscationPassword;
+    private static volatile CachedObfuscator cachedObfuscator;
 
     /**
      * Generates a nonce (a random number used once).
      */
     public static long generateNonce() {
-        long nonce = RANDOM.nextLong();
-        knownNonces.add(nonce);
+        long nonce;
+        do {
+            nonce = RANDOM.nextLong();
+        } while (nonce == 0);
+        final long expiry = System.currentTimeMillis() + knownNonces.getTimeToLive();
+        knownNonces.add(nonce, expiry);
+        final NonceJournal journal = nonceJournal;
+        if (journal != null) {
+            journal.add(nonce, expiry);
+        }
         return nonce;
     }
 
-    public static boolean isNonceKnown(long nonce) {
-        return knownNonces.contains(nonce);
-    }
-
     public static void removeNonce(long nonce) {
         knownNonces.remove(nonce);
+        final NonceJournal journal = nonceJournal;
+        if (journal != null) {
+            journal.remove(nonce);
+        }
+    }
+
+    /**
+     * Removes the nonce if it's known and hasn't expired.
+     *
+     * @return true if the nonce was valid.
+     */
+    public static boolean consumeNonce(long nonce) {
+        final boolean valid = knownNonces.consume(nonce);
+        final NonceJournal journal = nonceJournal;
+        if (valid && journal != null) {
+            journal.remove(nonce);
+        }
+        return valid;
+    }
+
+    /**
+     * Persists outstanding nonces in the given journal, and restores the
+     * unexpired nonces it already holds, so that responses to requests sent
+     * before the process was killed are still accepted. Nonces that expire or
+     * are evicted are removed from the journal.
+     *
+     * @param journal journal, or null to keep nonces in memory only.
+     */
+    public static void setNonceJournal(NonceJournal journal) {
+        if (journal != null) {
+            final int restored = journal.restore(knownNonces);
+            if (restored > 0) {
+                Logger.d(TAG, "Restored " + restored + " outstanding nonces");
+            }
+        }
+        knownNonces.setListener(journal);
+        nonceJournal = journal;
+    }
+
+    /**
+     * Returns the registry of outstanding nonces, mostly to read its expiry and
+     * unknown nonce counters.
+     */
+    public static NonceRegistry getNonceRegistry() {
+        return knownNonces;
+    }
+
+    /**
+     * Returns the keyed hash used to look up stored data by the given value,
+     * see {@link AESObfuscator#hash(String)}. Hashes are cached, so looking up
+     * the same product repeatedly costs a map lookup.
+     */
+    public static String hash(Context context, byte[] salt, String original) {
+        if (original == null) {
+            return null;
+        }
+        final CachedObfuscator cached = getCachedObfuscator(context, salt);
+        String hash = cached.hashes.get(original);
+        if (hash == null) {
+            hash = cached.obfuscator.hash(original);
+            if (cached.hashes.size() >= MAX_CACHED_HASHES) {
+                cached.hashes.clear();
+            }
+            cached.hashes.put(original, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the key of the hashes returned by
+     * {@link #hash(Context, byte[], String)}, deriving it if needed. Hashes can
+     * be computed from it cheaply, e.g. on cold start, see
+     * {@link AESObfuscator#newLookupMac(byte[])}.
+     */
+    public static byte[] getLookupKey(Context context, byte[] salt) {
+        return getObfuscator(context, salt).getLookupKey();
     }
 
     public static String obfuscate(Context context, byte[] salt, String original) {
@@ -52,18 +138,47 @@ public class Security {
     }
 
     /**
-     * This used to return a singleton, but the salt changes between user login/logouts
-     * requiring a new Obfuscator to be constructed with the new salt.
+     * Returns the obfuscator for the given salt. Deriving the key is expensive,
+     * so the last obfuscator is cached and reused for as long as the salt and
+     * password stay the same. The salt changes between user login/logouts
+     * (Amazon), in which case a new Obfuscator is derived with the new salt.
      *
      * @param context
      * @param salt
      * @return
      */
     private static AESObfuscator getObfuscator(Context context, byte[] salt) {
-        final String installationId = Installation.id(context);
-        final String deviceId = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
-        final String password = installationId + deviceId + context.getPackageName();
-        return new AESObfuscator(salt, password);
+        return getCachedObfuscator(context, salt).obfuscator;
+    }
+
+    private static CachedObfuscator getCachedObfuscator(Context context, byte[] salt) {
+        final String password = getPassword(context);
+        CachedObfuscator cached = cachedObfuscator;
+        if (cached == null || !cached.matches(salt, password)) {
+            synchronized (Security.class) {
+                cached = cachedObfuscator;
+                if (cached == null || !cached.matches(salt, password)) {
+                    cached = new CachedObfuscator(salt, password);
+                    cachedObfuscator = cached;
+                }
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * The password is made of the installation id, the device id and the
+     * package name, none of which change while the process is alive.
+     */
+    private static String getPassword(Context context) {
+        String password = obfuscationPassword;
+        if (password == null) {
+            final String installationId = Installation.id(context);
+            final String deviceId = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+            password = installationId + deviceId + context.getPackageName();
+            obfuscationPassword = password;
+        }
+        return password;
     }
 
     public static String unobfuscate(Context context, byte[] salt, String obfuscated) {
@@ -76,4 +191,21 @@ public class Security {
         return null;
     }
 
+    private static final class CachedObfuscator {
+        private final byte[] salt;
+        private final String password;
+        private final AESObfuscator obfuscator;
+        private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+        CachedObfuscator(byte[] salt, String password) {
+            this.salt = salt.clone();
+            this.password = password;
+            this.obfuscator = new AESObfuscator(salt, password);
+        }
+
+        boolean matches(byte[] salt, String password) {
+            return Arrays.equals(this.salt, salt) && this.password.equals(password);
+        }
+    }
+
 }
@@ -0,0 +1,105 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import android.os.RemoteException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestQueueTest {
+    private FakeConnection connection;
+    private RequestQueue queue;
+    private int bindFailures;
+
+    /**
+     * Connection that binds without a Market billing service.
+     */
+    private static class FakeConnection extends MarketBillingConnection {
+        boolean canBind = true;
+        int bindCount;
+        int idleCount;
+
+        FakeConnection() {
+            super(null, null, null);
+        }
+
+        @Override
+        boolean bindService() {
+            bindCount++;
+            return canBind;
+        }
+
+        @Override
+        void scheduleIdle() {
+            idleCount++;
+        }
+
+        @Override
+        void cancelIdle() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        connection = new FakeConnection();
+        queue = new RequestQueue(connection, new RequestQueue.Callback() {
+            @Override
+            public void onRequestSent(long requestId, BillingRequest request) {
+            }
+
+            @Override
+            public void onRemoteException(RemoteException e) {
+            }
+
+            @Override
+            public void onBindFailed() {
+                bindFailures++;
+            }
+        });
+    }
+
+    @Test
+    public void testConnectWithEmptyQueueBinds() {
+        queue.connect();
+
+        assertTrue(connection.isBound());
+        assertEquals(1, connection.bindCount);
+        // The binding is released if no request follows
+        assertEquals(1, connection.idleCount);
+        assertEquals(0, bindFailures);
+    }
+
+    @Test
+    public void testConnectWhenBoundDoesNotBindAgain() {
+        queue.connect();
+        queue.connect();
+
+        assertTrue(connection.isBound());
+        assertEquals(1, connection.bindCount);
+    }
+
+    @Test
+    public void testRunPendingWithEmptyQueueDoesNotBind() {
+        queue.runPending();
+
+        assertFalse(connection.isBound());
+        assertEquals(0, connection.bindCount);
+    }
+}
@@ -0,0 +1,132 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing;
+
+import net.robotmedia.billing.BillingRequest.ResponseCode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestRegistryTest {
+    private static final int PAIRS = 4;
+    private static final int REQUESTS_PER_PAIR = 10000;
+
+    @Test
+    public void testResponseAfterRegister() {
+        final RequestRegistry<Long> registry = new RequestRegistry<Long>();
+
+        assertNull(registry.register(1, 1L));
+        assertEquals(Long.valueOf(1), registry.complete(1, ResponseCode.RESULT_OK));
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void testResponseBeforeRegister() {
+        final RequestRegistry<Long> registry = new RequestRegistry<Long>();
+
+        assertNull(registry.complete(1, ResponseCode.RESULT_OK));
+        assertEquals(ResponseCode.RESULT_OK, registry.register(1, 1L));
+        assertTrue(registry.isEmpty());
+    }
+
+    /**
+     * Races the registration of each request against its response, and checks
+     * each response is delivered exactly once, by whichever side saw both.
+     */
+    @Test
+    public void testConcurrentRegisterAndComplete() throws Throwable {
+        final RequestRegistry<Long> registry = new RequestRegistry<Long>();
+        final AtomicIntegerArray deliveries = new AtomicIntegerArray(PAIRS * REQUESTS_PER_PAIR);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int pair = 0; pair < PAIRS; pair++) {
+            final int firstId = pair * REQUESTS_PER_PAIR;
+            final AtomicInteger arrivals = new AtomicInteger();
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int id = firstId; id < firstId + REQUESTS_PER_PAIR; id++) {
+                            await(arrivals, id - firstId, failure);
+                            final ResponseCode response = registry.register(id, (long) id);
+                            if (response != null) {
+                                assertEquals(ResponseCode.RESULT_OK, response);
+                                deliveries.incrementAndGet(id);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int id = firstId; id < firstId + REQUESTS_PER_PAIR; id++) {
+                            await(arrivals, id - firstId, failure);
+                            final Long request = registry.complete(id, ResponseCode.RESULT_OK);
+                            if (request != null) {
+                                assertEquals(Long.valueOf(id), request);
+                                deliveries.incrementAndGet(id);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        for (int id = 0; id < deliveries.length(); id++) {
+            assertEquals("Deliveries of request " + id, 1, deliveries.get(id));
+        }
+        assertTrue(registry.isEmpty());
+    }
+
+    /**
+     * Spins until both threads of a pair reach the given round, so that they
+     * start it as close together as possible.
+     */
+    private static void await(AtomicInteger arrivals, int round, AtomicReference<Throwable> failure) {
+        final int target = 2 * (round + 1);
+        arrivals.incrementAndGet();
+        while (arrivals.get() < target) {
+            if (failure.get() != null) {
+                throw new IllegalStateException("The other thread failed");
+            }
+            Thread.yield();
+        }
+    }
+}
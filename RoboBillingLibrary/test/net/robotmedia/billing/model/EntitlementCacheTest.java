@@ -0,0 +1,157 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntitlementCacheTest {
+    private HeapTransactionStore store;
+    private EntitlementCache cache;
+    private List<TransactionWriter.Write> queued;
+
+    @Before
+    public void setUp() {
+        store = new HeapTransactionStore();
+        cache = new EntitlementCache();
+        queued = new ArrayList<TransactionWriter.Write>();
+    }
+
+    @Test
+    public void testRemoveThenInsert() {
+        store.insert(TransactionStoreTest.transaction("1", "a", PurchaseState.PURCHASED, 10));
+        cache.load(store);
+
+        remove("a");
+        insert("2", "a", PurchaseState.PURCHASED);
+        assertEquals(1, cache.count("a"));
+
+        write();
+        assertEquals(1, cache.count("a"));
+    }
+
+    @Test
+    public void testInsertThenRemove() {
+        cache.load(store);
+
+        insert("1", "a", PurchaseState.PURCHASED);
+        remove("a");
+        assertEquals(0, cache.count("a"));
+
+        write();
+        assertEquals(0, cache.count("a"));
+    }
+
+    @Test
+    public void testStoreExistingOrderAgain() {
+        store.insert(TransactionStoreTest.transaction("1", "a", PurchaseState.PURCHASED, 10));
+        cache.load(store);
+
+        insert("1", "a", PurchaseState.PURCHASED);
+        // Can't tell if order 1 is already stored
+        assertEquals(-1, cache.count("a"));
+        assertEquals(1, cache.countStoredIfUnknown("a"));
+
+        write();
+        assertEquals(1, cache.count("a"));
+    }
+
+    @Test
+    public void testSameOrderQueuedTwice() {
+        cache.load(store);
+
+        insert("1", "a", PurchaseState.PURCHASED);
+        insert("1", "a", PurchaseState.PURCHASED);
+        assertEquals(1, cache.count("a"));
+
+        insert("1", "a", PurchaseState.REFUNDED);
+        assertEquals(0, cache.count("a"));
+
+        write();
+        assertEquals(0, cache.count("a"));
+    }
+
+    @Test
+    public void testCancelUnknownOrder() {
+        cache.load(store);
+
+        insert("1", "a", PurchaseState.CANCELLED);
+        assertEquals(0, cache.count("a"));
+
+        write();
+        assertEquals(0, cache.count("a"));
+    }
+
+    @Test
+    public void testPartialWrite() {
+        cache.load(store);
+
+        insert("1", "a", PurchaseState.PURCHASED);
+        write();
+        insert("2", "a", PurchaseState.PURCHASED);
+        assertEquals(-1, cache.count("a"));
+
+        write();
+        assertEquals(2, cache.count("a"));
+    }
+
+    private void insert(String orderId, String productKey, PurchaseState state) {
+        final List<Transaction> transactions = Collections.singletonList(
+                TransactionStoreTest.transaction(orderId, productKey, state, 0));
+        cache.queueInsert(transactions);
+        queued.add(new TransactionWriter.Write(transactions, null, null, null));
+    }
+
+    private void remove(String productKey) {
+        final String[] productKeys = {productKey};
+        cache.queueRemoval(productKeys, null);
+        queued.add(new TransactionWriter.Write(null, productKeys, null, null));
+    }
+
+    /**
+     * Stores the queued writes the way {@link TransactionManager} does.
+     */
+    private void write() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (TransactionWriter.Write write : queued) {
+            if (write.transactions != null) {
+                store.insert(write.transactions);
+                for (Transaction transaction : write.transactions) {
+                    counts.put(transaction.productKey, 0);
+                }
+            } else {
+                store.remove(write.productKeys);
+                for (String productKey : write.productKeys) {
+                    counts.put(productKey, 0);
+                }
+            }
+        }
+        for (String productKey : counts.keySet()) {
+            counts.put(productKey, store.countTransactions(productKey, PurchaseState.PURCHASED));
+        }
+        cache.written(queued, counts);
+        queued = new ArrayList<TransactionWriter.Write>();
+    }
+}
@@ -0,0 +1,139 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.utils.AESObfuscator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EntitlementSnapshotTest {
+    private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final byte[] LOOKUP_KEY = {9, 8, 7, 6, 5, 4, 3, 2, 1, 0, 9, 8, 7, 6, 5, 4};
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("snapshot", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReload() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.setLookupKey(SALT, LOOKUP_KEY);
+        final String productKey = productKey("a");
+        snapshot.update(counts(productKey, 2));
+
+        final EntitlementSnapshot reloaded = new EntitlementSnapshot(file);
+        assertTrue(reloaded.load());
+        assertEquals(productKey, reloaded.getProductKey(SALT, "a"));
+        assertEquals(2, reloaded.count(productKey));
+        assertEquals(productKey("b"), reloaded.getProductKey(SALT, "b"));
+        assertEquals(0, reloaded.count(productKey("b")));
+    }
+
+    @Test
+    public void testOtherSaltCantOpen() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.setLookupKey(SALT, LOOKUP_KEY);
+        snapshot.update(counts(productKey("a"), 1));
+
+        final EntitlementSnapshot reloaded = new EntitlementSnapshot(file);
+        assertTrue(reloaded.load());
+        assertNull(reloaded.getProductKey(new byte[]{8, 7, 6, 5, 4, 3, 2, 1}, "a"));
+    }
+
+    @Test
+    public void testWithoutSalt() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.setLookupKey(null, null);
+        snapshot.update(counts("a", 1));
+
+        final EntitlementSnapshot reloaded = new EntitlementSnapshot(file);
+        assertTrue(reloaded.load());
+        assertEquals("a", reloaded.getProductKey(null, "a"));
+        assertEquals(1, reloaded.count("a"));
+    }
+
+    @Test
+    public void testNotWrittenUntilKeyKnown() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.update(counts("a", 1));
+        assertFalse(file.exists());
+        assertNull(snapshot.getProductKey(SALT, "a"));
+
+        snapshot.setLookupKey(null, null);
+        assertTrue(file.exists());
+        assertEquals(1, snapshot.count("a"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.setLookupKey(SALT, LOOKUP_KEY);
+        final String productKey = productKey("a");
+        snapshot.update(counts(productKey, 1));
+        assertEquals(productKey, snapshot.getProductKey(SALT, "a"));
+        snapshot.invalidate();
+
+        assertEquals(-1, snapshot.count(productKey));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testUpdateBeforeOpenKeepsNewCounts() {
+        final EntitlementSnapshot snapshot = new EntitlementSnapshot(file);
+        snapshot.setLookupKey(null, null);
+        snapshot.update(counts("a", 1));
+
+        final EntitlementSnapshot reloaded = new EntitlementSnapshot(file);
+        assertTrue(reloaded.load());
+        reloaded.update(counts("a", 2));
+        assertEquals("a", reloaded.getProductKey(null, "a"));
+        assertEquals(2, reloaded.count("a"));
+
+        final EntitlementSnapshot again = new EntitlementSnapshot(file);
+        assertTrue(again.load());
+        again.getProductKey(null, "a");
+        assertEquals(2, again.count("a"));
+    }
+
+    private static String productKey(String itemId) {
+        return AESObfuscator.hash(AESObfuscator.newLookupMac(LOOKUP_KEY), itemId);
+    }
+
+    private static Map<String, Integer> counts(String productKey, int count) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put(productKey, count);
+        return counts;
+    }
+}
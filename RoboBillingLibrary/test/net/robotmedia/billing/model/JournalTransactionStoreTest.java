@@ -0,0 +1,83 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class JournalTransactionStoreTest extends TransactionStoreTest {
+    private File file;
+
+    @Override
+    protected TransactionStore createStore() throws Exception {
+        file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        return new JournalTransactionStore(file);
+    }
+
+    @Override
+    protected boolean supportsRollback() {
+        return false;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+    }
+
+    @Test
+    public void testReplay() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 10),
+                transaction("2", "b", PurchaseState.PURCHASED, 20),
+                transaction("3", "c", PurchaseState.PURCHASED, 30)));
+        store.remove(new String[]{"b"});
+        store.close();
+
+        final TransactionStore replayed = new JournalTransactionStore(file);
+        assertEquals(Arrays.asList("1", "3"), orderIds(replayed.queryTransactions()));
+        replayed.close();
+    }
+
+    @Test
+    public void testConfirmationsReplay() {
+        store.insertConfirmations(new String[]{"n1", "n2", "n3"});
+        store.removeConfirmations(new String[]{"n2"});
+        store.close();
+
+        final TransactionStore replayed = new JournalTransactionStore(file);
+        assertEquals(Arrays.asList("n1", "n3"), replayed.queryConfirmations());
+        replayed.close();
+    }
+
+    @Test
+    public void testReplayAfterFailedBatch() {
+        store.beginBatch();
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+        store.endBatch(false);
+        store.close();
+
+        // The journal matches what was kept in memory
+        final TransactionStore replayed = new JournalTransactionStore(file);
+        assertEquals(Arrays.asList("1"), orderIds(replayed.queryTransactions()));
+        replayed.close();
+    }
+}
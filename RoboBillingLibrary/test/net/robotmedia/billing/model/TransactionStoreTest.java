@@ -0,0 +1,363 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.model;
+
+import net.robotmedia.billing.model.Transaction.PurchaseState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Behavior every {@link TransactionStore} must share. Subclasses create the
+ * store under test. {@link SQLiteTransactionStore} isn't covered, it needs the
+ * platform's SQLite, which the stub android.jar doesn't provide.
+ */
+public abstract class TransactionStoreTest {
+    protected TransactionStore store;
+
+    protected abstract TransactionStore createStore() throws Exception;
+
+    /**
+     * @return true if a failed batch is rolled back, false if its writes are
+     *         kept.
+     */
+    protected abstract boolean supportsRollback();
+
+    @Before
+    public void setUp() throws Exception {
+        store = createStore();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    protected static Transaction transaction(String orderId, String productKey, PurchaseState state, long time) {
+        final Transaction transaction = new Transaction(orderId, productKey, "net.robotmedia.test", state, null,
+                time, null);
+        transaction.productKey = productKey;
+        return transaction;
+    }
+
+    protected static List<String> orderIds(List<Transaction> transactions) {
+        final List<String> orderIds = new ArrayList<String>();
+        for (Transaction transaction : transactions) {
+            orderIds.add(transaction.orderId);
+        }
+        return orderIds;
+    }
+
+    @Test
+    public void testInsert() {
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+        store.insert(Arrays.asList(transaction("2", "a", PurchaseState.CANCELLED, 20),
+                transaction("3", "b", PurchaseState.PURCHASED, 30)));
+
+        assertEquals(Arrays.asList("1", "2"), orderIds(store.queryTransactions("a")));
+        assertEquals(Arrays.asList("1"), orderIds(store.queryTransactions("a", PurchaseState.PURCHASED)));
+        assertEquals(3, store.queryTransactions().size());
+        final Transaction stored = store.queryTransactions("b").get(0);
+        assertEquals("b", stored.productKey);
+        assertEquals(PurchaseState.PURCHASED, stored.purchaseState);
+        assertEquals(30, stored.purchaseTime);
+    }
+
+    @Test
+    public void testInsertReplacesSameOrderId() {
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+        store.insert(transaction("1", "a", PurchaseState.REFUNDED, 10));
+
+        final List<Transaction> transactions = store.queryTransactions("a");
+        assertEquals(1, transactions.size());
+        assertEquals(PurchaseState.REFUNDED, transactions.get(0).purchaseState);
+    }
+
+    @Test
+    public void testRemove() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 10),
+                transaction("2", "b", PurchaseState.PURCHASED, 20),
+                transaction("3", "c", PurchaseState.PURCHASED, 30)));
+
+        store.remove(new String[]{"a", "c", "unknown"});
+
+        assertEquals(Arrays.asList("2"), orderIds(store.queryTransactions()));
+        assertEquals(0, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testCounts() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 10),
+                transaction("2", "a", PurchaseState.PURCHASED, 20),
+                transaction("3", "a", PurchaseState.REFUNDED, 30),
+                transaction("4", "b", PurchaseState.CANCELLED, 40)));
+
+        assertEquals(2, store.countTransactions("a", PurchaseState.PURCHASED));
+        assertEquals(1, store.countTransactions("a", PurchaseState.REFUNDED));
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put("a", 2);
+        assertEquals(expected, store.countPurchases());
+    }
+
+    @Test
+    public void testPagingOrder() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 30),
+                transaction("2", "a", PurchaseState.PURCHASED, 10),
+                transaction("3", "b", PurchaseState.PURCHASED, 20),
+                transaction("4", "b", PurchaseState.PURCHASED, 20),
+                transaction("5", "b", PurchaseState.PURCHASED, 40)));
+
+        // Lower bound inclusive, upper bound exclusive, same times in insertion order
+        assertEquals(Arrays.asList("2", "3", "4", "1"), orderIds(store.queryTransactions(10, 40)));
+        assertEquals(Arrays.asList("3", "4"), orderIds(store.queryTransactions(20, 30)));
+        assertTrue(store.queryTransactions(50, 60).isEmpty());
+    }
+
+    @Test
+    public void testIterationOrder() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 30),
+                transaction("2", "a", PurchaseState.PURCHASED, 10),
+                transaction("3", "b", PurchaseState.PURCHASED, 20)));
+
+        final List<String> orderIds = new ArrayList<String>();
+        final TransactionIterator iterator = store.iterateTransactions(null);
+        while (iterator.hasNext()) {
+            orderIds.add(iterator.next().orderId);
+        }
+        assertEquals(Arrays.asList("2", "3", "1"), orderIds);
+    }
+
+    @Test
+    public void testIterationDecoderSkips() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 10),
+                transaction("2", "b", PurchaseState.PURCHASED, 20)));
+
+        final TransactionIterator iterator = store.iterateTransactions(new TransactionIterator.Decoder() {
+            @Override
+            public boolean decode(Transaction transaction) {
+                return !"a".equals(transaction.productKey);
+            }
+        });
+        assertTrue(iterator.hasNext());
+        assertEquals("2", iterator.next().orderId);
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testIterationClose() {
+        store.insert(Arrays.asList(transaction("1", "a", PurchaseState.PURCHASED, 10),
+                transaction("2", "a", PurchaseState.PURCHASED, 20)));
+
+        final TransactionIterator iterator = store.iterateTransactions(null);
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        // Closing again is allowed
+        iterator.close();
+
+        // The store is still usable once the iterator is closed early
+        store.insert(transaction("3", "a", PurchaseState.PURCHASED, 30));
+        assertEquals(3, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testManyConsumablePurchases() {
+        final int purchases = 50000;
+        final int batchSize = 1000;
+        // Stored newest first, so paging has to sort them
+        for (int i = purchases; i > 0; i -= batchSize) {
+            final List<Transaction> batch = new ArrayList<Transaction>(batchSize);
+            for (int j = i; j > i - batchSize; j--) {
+                batch.add(transaction(String.valueOf(j), "a", PurchaseState.PURCHASED, j));
+            }
+            store.beginBatch();
+            store.insert(batch);
+            store.endBatch(true);
+        }
+        store.insert(transaction("refunded", "a", PurchaseState.REFUNDED, 0));
+
+        assertEquals(purchases, store.countTransactions("a", PurchaseState.PURCHASED));
+        assertEquals(Integer.valueOf(purchases), store.countPurchases().get("a"));
+
+        long expectedTime = 0;
+        for (long from = 0; from <= purchases; from += batchSize) {
+            for (Transaction transaction : store.queryTransactions(from, from + batchSize)) {
+                assertEquals(expectedTime++, transaction.purchaseTime);
+            }
+        }
+        assertEquals(purchases + 1, expectedTime);
+
+        expectedTime = 0;
+        final TransactionIterator iterator = store.iterateTransactions(null);
+        while (iterator.hasNext()) {
+            assertEquals(expectedTime++, iterator.next().purchaseTime);
+        }
+        assertEquals(purchases + 1, expectedTime);
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws Exception {
+        final int batches = 200;
+        final int batchSize = 50;
+        final Throwable[] failure = new Throwable[1];
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < batches; i++) {
+                        final List<Transaction> batch = new ArrayList<Transaction>(batchSize);
+                        for (int j = 0; j < batchSize; j++) {
+                            final int n = i * batchSize + j;
+                            batch.add(transaction(String.valueOf(n), "a", PurchaseState.PURCHASED, n));
+                        }
+                        store.beginBatch();
+                        store.insert(batch);
+                        store.endBatch(true);
+                        Thread.yield();
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        writer.start();
+
+        int lastCount = 0;
+        int reads = 0;
+        while (writer.isAlive() || reads == 0) {
+            final int count = store.countTransactions("a", PurchaseState.PURCHASED);
+            assertTrue("Count went back from " + lastCount + " to " + count, count >= lastCount);
+            lastCount = count;
+            assertTrue(store.queryTransactions("a").size() >= count);
+            final TransactionIterator iterator = store.iterateTransactions(null);
+            int iterated = 0;
+            long lastTime = -1;
+            while (iterator.hasNext()) {
+                final long time = iterator.next().purchaseTime;
+                assertTrue(time > lastTime);
+                lastTime = time;
+                iterated++;
+            }
+            assertTrue(iterated >= count);
+            reads++;
+            Thread.yield();
+        }
+        writer.join();
+
+        assertNull(failure[0]);
+        assertEquals(batches * batchSize, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testBatch() {
+        store.beginBatch();
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+        store.remove(new String[]{"b"});
+        store.endBatch(true);
+
+        assertEquals(1, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testBatchRollback() {
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+
+        store.beginBatch();
+        store.insert(transaction("2", "a", PurchaseState.PURCHASED, 20));
+        store.remove(new String[]{"a"});
+        store.insert(transaction("3", "b", PurchaseState.PURCHASED, 30));
+        store.endBatch(false);
+
+        if (supportsRollback()) {
+            assertEquals(Arrays.asList("1"), orderIds(store.queryTransactions()));
+        } else {
+            assertEquals(Arrays.asList("3"), orderIds(store.queryTransactions()));
+        }
+
+        // The next batch is stored either way
+        store.beginBatch();
+        store.insert(transaction("4", "c", PurchaseState.PURCHASED, 40));
+        store.endBatch(true);
+        assertEquals(1, store.countTransactions("c", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testTransactionsWithoutKey() {
+        final Transaction legacy = transaction("1", null, PurchaseState.PURCHASED, 10);
+        legacy.productId = "legacy";
+        store.insert(Arrays.asList(legacy, transaction("2", "a", PurchaseState.PURCHASED, 20)));
+
+        assertEquals(Arrays.asList("1"), orderIds(store.queryTransactionsWithoutKey("legacy")));
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put("legacy", 1);
+        assertEquals(expected, store.countPurchasesWithoutKey());
+
+        final Map<String, String> productKeys = new HashMap<String, String>();
+        productKeys.put("1", "a");
+        store.updateProductKeys(productKeys);
+
+        assertTrue(store.queryTransactionsWithoutKey().isEmpty());
+        assertEquals(2, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testRemoveWithoutKey() {
+        final Transaction legacy = transaction("1", null, PurchaseState.PURCHASED, 10);
+        legacy.productId = "legacy";
+        store.insert(Arrays.asList(legacy, transaction("2", "legacy", PurchaseState.PURCHASED, 20)));
+
+        store.removeWithoutKey(new String[]{"legacy"});
+
+        assertTrue(store.queryTransactionsWithoutKey().isEmpty());
+        // Transactions with a product key are kept
+        assertEquals(1, store.countTransactions("legacy", PurchaseState.PURCHASED));
+    }
+
+    @Test
+    public void testConfirmations() {
+        store.insertConfirmations(new String[]{"n1", "n2"});
+        store.insertConfirmations(new String[]{"n2", "n3"});
+        store.removeConfirmations(new String[]{"n1", "unknown"});
+
+        assertEquals(Arrays.asList("n2", "n3"), store.queryConfirmations());
+    }
+
+    @Test
+    public void testClosedStoreReopens() {
+        store.insert(transaction("1", "a", PurchaseState.PURCHASED, 10));
+        store.close();
+
+        try {
+            store.insert(transaction("2", "a", PurchaseState.PURCHASED, 20));
+        } catch (RuntimeException e) {
+            fail("Store wasn't reopened: " + e);
+        }
+        assertEquals(2, store.countTransactions("a", PurchaseState.PURCHASED));
+    }
+}
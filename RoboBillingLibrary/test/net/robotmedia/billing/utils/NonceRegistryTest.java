@@ -0,0 +1,100 @@
+/*   Copyright 2011 Robot Media SL (http://www.robotmedia.net)
+*
+*   Licensed under the Apache License, Version 2.0 (the "License");
+*   you may not use this file except in compliance with the License.
+*   You may obtain a copy of the License at
+*
+*       http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*   See the License for the specific language governing permissions and
+*   limitations under the License.
+*/
+
+package net.robotmedia.billing.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NonceRegistryTest {
+
+    private static class RecordingListener implements NonceRegistry.Listener {
+        final List<Long> dropped = new ArrayList<Long>();
+
+        @Override
+        public void onDropped(long[] nonces) {
+            for (long nonce : nonces) {
+                dropped.add(nonce);
+            }
+        }
+    }
+
+    @Test
+    public void testConsume() {
+        final NonceRegistry registry = new NonceRegistry();
+        registry.add(1);
+
+        assertTrue(registry.consume(1));
+        assertFalse(registry.consume(1));
+        assertEquals(0, registry.size());
+        assertEquals(1, registry.getUnknownCount());
+    }
+
+    @Test
+    public void testEvictedNoncesAreReported() {
+        final NonceRegistry registry = new NonceRegistry(NonceRegistry.DEFAULT_TIME_TO_LIVE, 2);
+        final RecordingListener listener = new RecordingListener();
+        registry.setListener(listener);
+        final long now = System.currentTimeMillis();
+        registry.add(1, now + 1000);
+        registry.add(2, now + 2000);
+        registry.add(3, now + 3000);
+
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.getEvictedCount());
+        assertEquals(1, listener.dropped.size());
+        assertEquals(Long.valueOf(1), listener.dropped.get(0));
+        assertFalse(registry.contains(1));
+    }
+
+    @Test
+    public void testExpiredNoncesAreReported() {
+        final NonceRegistry registry = new NonceRegistry(NonceRegistry.DEFAULT_TIME_TO_LIVE, 2);
+        final RecordingListener listener = new RecordingListener();
+        registry.setListener(listener);
+        final long now = System.currentTimeMillis();
+        registry.add(1, now - 1);
+        registry.add(2, now - 1);
+        assertFalse(registry.consume(1));
+        registry.add(3, now + 1000);
+        registry.add(4, now + 1000);
+
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getExpiredCount());
+        assertEquals(0, registry.getEvictedCount());
+        assertEquals(2, listener.dropped.size());
+        assertTrue(listener.dropped.contains(1L));
+        assertTrue(listener.dropped.contains(2L));
+    }
+
+    @Test
+    public void testRemovedNoncesAreNotReported() {
+        final NonceRegistry registry = new NonceRegistry();
+        final RecordingListener listener = new RecordingListener();
+        registry.setListener(listener);
+        registry.add(1);
+        registry.add(2);
+
+        assertTrue(registry.remove(1));
+        assertTrue(registry.consume(2));
+        assertTrue(listener.dropped.isEmpty());
+    }
+}